@@ -0,0 +1,346 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Latent-factor model trained by implicit-feedback ALS. Only the item factors are kept,
+ * row-major in a flat float array; a user's vector is folded in from their history when
+ * they are served. Serving scores items by dot product and keeps the best topN in a
+ * min-heap; items are visited in decreasing factor norm so the scan stops once
+ * |user| * |item| cannot beat the heap minimum.
+ */
+public class AlsModel {
+    // "ALS" followed by the format version; version 1 also stored the trained user factors
+    private static final int MAGIC = 0x414C5332; // "ALS2"
+
+    // Confidence weights of the two kinds of implicit feedback
+    public static final float HISTORY_WEIGHT = 1.0f;
+    public static final float WATCHLIST_WEIGHT = 0.5f;
+
+    private final int factors;
+    private final float lambda;
+    private final float alpha;
+    private final String[] itemIds;
+    private final float[] itemFactors;
+    private final Map<String, Integer> itemIndex;
+    private final float[] itemNorms;
+    private final int[] itemsByNorm;
+    private final double[] itemGram;
+
+    public AlsModel(int factors, float lambda, float alpha, String[] itemIds, float[] itemFactors) {
+        this.factors = factors;
+        this.lambda = lambda;
+        this.alpha = alpha;
+        this.itemIds = itemIds;
+        this.itemFactors = itemFactors;
+
+        this.itemIndex = new HashMap<>(itemIds.length * 2);
+        for (int i = 0; i < itemIds.length; i++) {
+            itemIndex.put(itemIds[i], i);
+        }
+
+        // Precomputed for serving: item norms, items ordered by norm, and Y^T Y for fold-in
+        this.itemNorms = new float[itemIds.length];
+        Integer[] order = new Integer[itemIds.length];
+        for (int i = 0; i < itemIds.length; i++) {
+            itemNorms[i] = (float) Math.sqrt(dot(itemFactors, i * factors, itemFactors, i * factors, factors));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(itemNorms[b], itemNorms[a]));
+        this.itemsByNorm = new int[itemIds.length];
+        for (int i = 0; i < order.length; i++) {
+            itemsByNorm[i] = order[i];
+        }
+        this.itemGram = gram(itemFactors, itemIds.length, factors);
+    }
+
+    public int getFactors() {
+        return factors;
+    }
+
+    public int getItemCount() {
+        return itemIds.length;
+    }
+
+    /**
+     * Get the factor vector for a user, folded in from the user's current history and
+     * watchlist against the trained item factors. The solve is the same one training
+     * runs for each user, so changes made since training are reflected immediately.
+     * Null if the user has no interactions with items the model knows.
+     */
+    public float[] userVector(User user) {
+        Map<Integer, Float> weights = new HashMap<>();
+        for (String movieId : user.getHistory().getMovieIds()) {
+            Integer item = itemIndex.get(movieId);
+            if (item != null) weights.merge(item, HISTORY_WEIGHT, Float::sum);
+        }
+        for (String movieId : user.getWatchlist().getMovieIds()) {
+            Integer item = itemIndex.get(movieId);
+            if (item != null) weights.merge(item, WATCHLIST_WEIGHT, Float::sum);
+        }
+        if (weights.isEmpty()) {
+            return null;
+        }
+
+        int[] items = new int[weights.size()];
+        float[] confidence = new float[weights.size()];
+        int n = 0;
+        for (Map.Entry<Integer, Float> entry : weights.entrySet()) {
+            items[n] = entry.getKey();
+            confidence[n] = 1 + alpha * entry.getValue();
+            n++;
+        }
+        float[] vector = new float[factors];
+        solve(itemGram, itemFactors, factors, lambda, items, confidence, 0, n,
+                new double[factors * factors], new double[factors], vector, 0);
+        return vector;
+    }
+
+    /**
+     * Return the ids of the topN highest scoring movies accepted by the filter
+     */
+    public List<String> recommend(float[] userVector, int topN, Predicate<String> allowed) {
+        if (topN <= 0) {
+            return Collections.emptyList();
+        }
+        float userNorm = (float) Math.sqrt(dot(userVector, 0, userVector, 0, factors));
+        float[] heapScores = new float[topN];
+        int[] heapItems = new int[topN];
+        int heapSize = 0;
+
+        for (int n = 0; n < itemsByNorm.length; n++) {
+            int item = itemsByNorm[n];
+            // Cauchy-Schwarz bound: no later item can score higher than this
+            if (heapSize == topN && userNorm * itemNorms[item] < heapScores[0]) {
+                break;
+            }
+
+            float score = dot(userVector, 0, itemFactors, item * factors, factors);
+            if (heapSize == topN && !ranksBelow(heapScores[0], heapItems[0], score, item)) continue;
+            if (!allowed.test(itemIds[item])) continue;
+
+            if (heapSize < topN) {
+                heapScores[heapSize] = score;
+                heapItems[heapSize] = item;
+                siftUp(heapScores, heapItems, heapSize++);
+            } else {
+                heapScores[0] = score;
+                heapItems[0] = item;
+                siftDown(heapScores, heapItems, heapSize);
+            }
+        }
+
+        // Pop the heap into descending score order
+        String[] result = new String[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result[i] = itemIds[heapItems[0]];
+            heapScores[0] = heapScores[i];
+            heapItems[0] = heapItems[i];
+            siftDown(heapScores, heapItems, i);
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Save the model to a binary file (temp file + atomic rename)
+     */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(factors);
+            out.writeFloat(lambda);
+            out.writeFloat(alpha);
+            out.writeInt(itemIds.length);
+            for (String id : itemIds) out.writeUTF(id);
+            writeFloats(out, itemFactors);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a model saved by save(Path)
+     */
+    public static AlsModel load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic >>> 8 != MAGIC >>> 8) {
+                throw new IOException("Not an ALS model file: " + file);
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Unsupported ALS model version " + (char) (magic & 0xff) + ", retrain: " + file);
+            }
+            int factors = in.readInt();
+            float lambda = in.readFloat();
+            float alpha = in.readFloat();
+            String[] itemIds = new String[in.readInt()];
+            for (int i = 0; i < itemIds.length; i++) itemIds[i] = in.readUTF();
+            float[] itemFactors = readFloats(in, itemIds.length * factors);
+            return new AlsModel(factors, lambda, alpha, itemIds, itemFactors);
+        }
+    }
+
+    /**
+     * Dot product with four independent accumulators so the loop pipelines well
+     */
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Gram matrix F^T F of a row-major factor matrix
+     */
+    static double[] gram(float[] f, int rows, int factors) {
+        double[] g = new double[factors * factors];
+        for (int r = 0; r < rows; r++) {
+            int offset = r * factors;
+            for (int a = 0; a < factors; a++) {
+                double fa = f[offset + a];
+                if (fa == 0) continue;
+                for (int b = a; b < factors; b++) {
+                    g[a * factors + b] += fa * f[offset + b];
+                }
+            }
+        }
+        for (int a = 0; a < factors; a++) {
+            for (int b = 0; b < a; b++) {
+                g[a * factors + b] = g[b * factors + a];
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Solve one row of implicit ALS:
+     * (G + lambda I + sum (c - 1) y y^T) x = sum c y over the given interactions,
+     * writing x into out at outOffset. matrix and rhs are scratch space.
+     */
+    static void solve(double[] gram, float[] other, int factors, float lambda, int[] items, float[] confidence,
+                      int from, int to, double[] matrix, double[] rhs, float[] out, int outOffset) {
+        System.arraycopy(gram, 0, matrix, 0, matrix.length);
+        Arrays.fill(rhs, 0);
+        for (int a = 0; a < factors; a++) {
+            matrix[a * factors + a] += lambda;
+        }
+
+        for (int n = from; n < to; n++) {
+            int offset = items[n] * factors;
+            float c = confidence[n];
+            for (int a = 0; a < factors; a++) {
+                double ya = other[offset + a];
+                rhs[a] += c * ya;
+                double scaled = (c - 1) * ya;
+                for (int b = a; b < factors; b++) {
+                    matrix[a * factors + b] += scaled * other[offset + b];
+                }
+            }
+        }
+
+        // In-place Cholesky on the upper triangle: matrix = R^T R
+        for (int j = 0; j < factors; j++) {
+            double sum = matrix[j * factors + j];
+            for (int m = 0; m < j; m++) {
+                double r = matrix[m * factors + j];
+                sum -= r * r;
+            }
+            double diagonal = Math.sqrt(Math.max(sum, 1e-12));
+            matrix[j * factors + j] = diagonal;
+            for (int i = j + 1; i < factors; i++) {
+                double s = matrix[j * factors + i];
+                for (int m = 0; m < j; m++) {
+                    s -= matrix[m * factors + j] * matrix[m * factors + i];
+                }
+                matrix[j * factors + i] = s / diagonal;
+            }
+        }
+
+        // Solve R^T z = rhs, then R x = z
+        for (int i = 0; i < factors; i++) {
+            double s = rhs[i];
+            for (int m = 0; m < i; m++) {
+                s -= matrix[m * factors + i] * rhs[m];
+            }
+            rhs[i] = s / matrix[i * factors + i];
+        }
+        for (int i = factors - 1; i >= 0; i--) {
+            double s = rhs[i];
+            for (int m = i + 1; m < factors; m++) {
+                s -= matrix[i * factors + m] * rhs[m];
+            }
+            rhs[i] = s / matrix[i * factors + i];
+            out[outOffset + i] = (float) rhs[i];
+        }
+    }
+
+    // Lower score ranks below, equal scores are ordered by item index so results do not depend on topN
+    private static boolean ranksBelow(float score, int item, float otherScore, int otherItem) {
+        return score < otherScore || (score == otherScore && item > otherItem);
+    }
+
+    private static void siftUp(float[] scores, int[] items, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!ranksBelow(scores[i], items[i], scores[parent], items[parent])) break;
+            swap(scores, items, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(float[] scores, int[] items, int size) {
+        int i = 0;
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) break;
+            int smallest = left + 1 < size && ranksBelow(scores[left + 1], items[left + 1], scores[left], items[left])
+                    ? left + 1 : left;
+            if (!ranksBelow(scores[smallest], items[smallest], scores[i], items[i])) break;
+            swap(scores, items, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(float[] scores, int[] items, int a, int b) {
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, buffer.capacity() / 4);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, i, n);
+            out.write(buffer.array(), 0, n * 4);
+            i += n;
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int count) throws IOException {
+        float[] values = new float[count];
+        byte[] bytes = new byte[1 << 16];
+        for (int i = 0; i < count; ) {
+            int n = Math.min(count - i, bytes.length / 4);
+            in.readFully(bytes, 0, n * 4);
+            ByteBuffer.wrap(bytes, 0, n * 4).asFloatBuffer().get(values, i, n);
+            i += n;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the ALS model in step with the users file. Watchlist and history changes are
+ * counted, and a background thread retrains once enough have built up since the last
+ * training, or straight away when a model is requested and none exists. The new model
+ * is saved and swapped into the engine; recommendations keep using the previous model
+ * (or the genre fallback) while training runs, so no request waits for it.
+ */
+public class AlsRetrainer {
+    public static final int DEFAULT_CHANGE_THRESHOLD = 500;
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 60_000;
+
+    private static final LongAdder RETRAINS = Metrics.counter("als.retrains");
+    private static final LatencyHistogram TRAIN_LATENCY = Metrics.histogram("als.train.ns");
+
+    private final RecommendationEngine engine;
+    private final UserPersister userPersister;
+    private final int changeThreshold;
+    private final long checkIntervalMillis;
+    private final LongAdder changes;
+    private final Thread worker;
+    private volatile boolean running;
+    private volatile boolean training;
+    private boolean requested;
+
+    public AlsRetrainer(RecommendationEngine engine, UserPersister userPersister) {
+        this(engine, userPersister, DEFAULT_CHANGE_THRESHOLD, DEFAULT_CHECK_INTERVAL_MILLIS);
+    }
+
+    public AlsRetrainer(RecommendationEngine engine, UserPersister userPersister, int changeThreshold,
+                        long checkIntervalMillis) {
+        this.engine = engine;
+        this.userPersister = userPersister;
+        this.changeThreshold = changeThreshold;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.changes = new LongAdder();
+        this.running = true;
+        this.worker = new Thread(this::run, "als-retrainer");
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * Stop the worker once any training in progress has finished. It is woken rather than
+     * interrupted, since an interrupt while saving closes the model file channel.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Count a change to a user's watchlist or history
+     */
+    public void recordChange() {
+        changes.increment();
+        if (changes.sum() >= changeThreshold) {
+            requestTraining();
+        }
+    }
+
+    /**
+     * Train as soon as the worker is free, whatever the change count
+     */
+    public synchronized void requestTraining() {
+        requested = true;
+        notifyAll();
+    }
+
+    public boolean isTraining() {
+        return training;
+    }
+
+    /**
+     * Train a model on every user in the users file and swap it in, on the calling thread
+     */
+    public AlsModel retrain() {
+        training = true;
+        try {
+            long start = System.nanoTime();
+            // Changes made while training are counted towards the next one
+            changes.reset();
+            userPersister.flush();
+
+            AlsTrainer trainer = new AlsTrainer();
+            FileManager.forEachUser(trainer::addUser);
+            AlsModel model = trainer.train(Runtime.getRuntime().availableProcessors());
+            FileManager.saveAlsModel(model);
+            engine.setAlsModel(model);
+
+            long elapsed = System.nanoTime() - start;
+            TRAIN_LATENCY.record(elapsed);
+            RETRAINS.increment();
+            System.out.printf("%nALS model trained on %d users and %d interactions in %.1f s%n",
+                    trainer.getUserCount(), trainer.getInteractionCount(), elapsed / 1e9);
+            return model;
+        } finally {
+            training = false;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                boolean due;
+                synchronized (this) {
+                    if (!requested && running) {
+                        wait(checkIntervalMillis);
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    due = requested || changes.sum() >= changeThreshold;
+                    requested = false;
+                }
+                if (due) {
+                    retrain();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Error retraining ALS model: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Offline trainer for AlsModel (implicit-feedback ALS, Hu, Koren and Volinsky 2008).
+ * Users are added one at a time and kept as compressed rows; train() alternates
+ * between solving every user and every item, splitting each half-iteration across
+ * a fork-join pool. Each leaf task reuses one set of scratch matrices.
+ */
+public class AlsTrainer {
+    public static final int DEFAULT_FACTORS = 32;
+    public static final float DEFAULT_LAMBDA = 0.1f;
+    public static final float DEFAULT_ALPHA = 10f;
+    public static final int DEFAULT_ITERATIONS = 10;
+
+    // Rows per fork-join leaf
+    private static final int LEAF_ROWS = 256;
+
+    private static final LatencyHistogram ITERATION_LATENCY = Metrics.histogram("als.iteration.ns");
+
+    private final int factors;
+    private final float lambda;
+    private final float alpha;
+    private final int iterations;
+
+    private final List<String> itemIds = new ArrayList<>();
+    private final Map<String, Integer> itemIndex = new HashMap<>();
+    private int[] rowStart = new int[1024];
+    private int[] items = new int[4096];
+    private float[] confidence = new float[4096];
+    private int userCount;
+    private int interactions;
+
+    public AlsTrainer() {
+        this(DEFAULT_FACTORS, DEFAULT_LAMBDA, DEFAULT_ALPHA, DEFAULT_ITERATIONS);
+    }
+
+    public AlsTrainer(int factors, float lambda, float alpha, int iterations) {
+        this.factors = factors;
+        this.lambda = lambda;
+        this.alpha = alpha;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Add a user's history and watchlist as implicit feedback
+     */
+    public void addUser(User user) {
+        Map<Integer, Float> weights = new LinkedHashMap<>();
+        for (String movieId : user.getHistory().getMovieIds()) {
+            weights.merge(item(movieId), AlsModel.HISTORY_WEIGHT, Float::sum);
+        }
+        for (String movieId : user.getWatchlist().getMovieIds()) {
+            weights.merge(item(movieId), AlsModel.WATCHLIST_WEIGHT, Float::sum);
+        }
+
+        int[] ids = new int[weights.size()];
+        float[] values = new float[weights.size()];
+        int n = 0;
+        for (Map.Entry<Integer, Float> entry : weights.entrySet()) {
+            ids[n] = entry.getKey();
+            values[n] = entry.getValue();
+            n++;
+        }
+        addUser(ids, values, n);
+    }
+
+    /**
+     * Add a user from raw item ids and preference weights, used by generated datasets
+     */
+    public void addUser(String[] movieIds, float[] weights) {
+        int[] ids = new int[movieIds.length];
+        for (int i = 0; i < movieIds.length; i++) {
+            ids[i] = item(movieIds[i]);
+        }
+        addUser(ids, weights, movieIds.length);
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public int getInteractionCount() {
+        return interactions;
+    }
+
+    /**
+     * Train the model on a pool with the given parallelism
+     */
+    public AlsModel train(int parallelism) {
+        int itemCount = itemIds.size();
+        int[] userRowStart = Arrays.copyOf(rowStart, userCount + 1);
+        userRowStart[userCount] = interactions;
+
+        // Transpose into item rows for the item half-iteration
+        int[] itemRowStart = new int[itemCount + 1];
+        for (int n = 0; n < interactions; n++) {
+            itemRowStart[items[n] + 1]++;
+        }
+        for (int i = 0; i < itemCount; i++) {
+            itemRowStart[i + 1] += itemRowStart[i];
+        }
+        int[] itemUsers = new int[interactions];
+        float[] itemConfidence = new float[interactions];
+        int[] fill = Arrays.copyOf(itemRowStart, itemCount);
+        float[] userConfidence = new float[interactions];
+        for (int u = 0; u < userCount; u++) {
+            for (int n = userRowStart[u]; n < userRowStart[u + 1]; n++) {
+                float c = 1 + alpha * confidence[n];
+                userConfidence[n] = c;
+                int slot = fill[items[n]]++;
+                itemUsers[slot] = u;
+                itemConfidence[slot] = c;
+            }
+        }
+
+        float[] userFactors = new float[userCount * factors];
+        float[] itemFactors = new float[itemCount * factors];
+        Random random = new Random(42);
+        float scale = (float) (0.1 / Math.sqrt(factors));
+        for (int i = 0; i < itemFactors.length; i++) {
+            itemFactors[i] = random.nextFloat() * scale;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                long start = System.nanoTime();
+                double[] itemGram = AlsModel.gram(itemFactors, itemCount, factors);
+                pool.invoke(new SolveTask(itemGram, itemFactors, userRowStart, items, userConfidence,
+                        userFactors, 0, userCount));
+
+                double[] userGram = AlsModel.gram(userFactors, userCount, factors);
+                pool.invoke(new SolveTask(userGram, userFactors, itemRowStart, itemUsers, itemConfidence,
+                        itemFactors, 0, itemCount));
+                ITERATION_LATENCY.record(System.nanoTime() - start);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // User factors are only needed to train the items, serving folds users in from their history
+        return new AlsModel(factors, lambda, alpha, itemIds.toArray(new String[0]), itemFactors);
+    }
+
+    private int item(String movieId) {
+        Integer index = itemIndex.get(movieId);
+        if (index == null) {
+            index = itemIds.size();
+            itemIds.add(movieId);
+            itemIndex.put(movieId, index);
+        }
+        return index;
+    }
+
+    private void addUser(int[] ids, float[] weights, int count) {
+        int row = userCount++;
+        if (row + 1 >= rowStart.length) {
+            rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+        }
+        if (interactions + count > items.length) {
+            int capacity = Math.max(items.length * 2, interactions + count);
+            items = Arrays.copyOf(items, capacity);
+            confidence = Arrays.copyOf(confidence, capacity);
+        }
+        rowStart[row] = interactions;
+        System.arraycopy(ids, 0, items, interactions, count);
+        System.arraycopy(weights, 0, confidence, interactions, count);
+        interactions += count;
+    }
+
+    /**
+     * Solve a range of rows against the fixed factors of the other side
+     */
+    private class SolveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] gram;
+        private final float[] fixed;
+        private final int[] rowStart;
+        private final int[] columns;
+        private final float[] values;
+        private final float[] out;
+        private final int from;
+        private final int to;
+
+        SolveTask(double[] gram, float[] fixed, int[] rowStart, int[] columns, float[] values,
+                  float[] out, int from, int to) {
+            this.gram = gram;
+            this.fixed = fixed;
+            this.rowStart = rowStart;
+            this.columns = columns;
+            this.values = values;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_ROWS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SolveTask(gram, fixed, rowStart, columns, values, out, from, mid),
+                        new SolveTask(gram, fixed, rowStart, columns, values, out, mid, to));
+                return;
+            }
+
+            double[] matrix = new double[factors * factors];
+            double[] rhs = new double[factors];
+            for (int row = from; row < to; row++) {
+                AlsModel.solve(gram, fixed, factors, lambda, columns, values, rowStart[row], rowStart[row + 1],
+                        matrix, rhs, out, row * factors);
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Batch scoring of every user, split across local worker processes. The coordinator
+ * starts one JVM per shard; each worker memory-maps the users file read-only (the
+ * pages are shared by all workers through the page cache), parses only the users
+ * whose username hash falls in its shard, scores them and writes a part file sorted
+ * by username. The coordinator then merges the part files into one output file.
+ * Workers sort in bounded runs, so no process holds more than RUN_SIZE results.
+ *
+ * Run from the test5 directory with: java BatchScorer [workers] [output file]
+ * Options: -Dbatch.strategy=genre -Dbatch.topN=10
+ */
+public class BatchScorer {
+    public static final String DEFAULT_OUTPUT = "data/recommendations.csv";
+    public static final String DEFAULT_STRATEGY = "genre";
+    public static final int DEFAULT_TOP_N = 10;
+    public static final String HEADER = "Username,Recommendations";
+
+    // Results sorted in memory before a worker spills them to a run file
+    private static final int RUN_SIZE = 200_000;
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final Comparator<String> BY_USERNAME = Comparator.comparing(BatchScorer::usernameOf);
+
+    public static void main(String[] args) {
+        String strategy = System.getProperty("batch.strategy", DEFAULT_STRATEGY);
+        int topN = Integer.getInteger("batch.topN", DEFAULT_TOP_N);
+
+        if (args.length > 0 && args[0].equals("--worker")) {
+            try {
+                scoreShard(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Paths.get(args[3]),
+                        Paths.get(args[4]), Paths.get(args[5]), strategy, topN);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Worker " + args[1] + " failed: " + e);
+                System.exit(1);
+            }
+            return;
+        }
+
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        Path output = Paths.get(args.length > 1 ? args[1] : DEFAULT_OUTPUT);
+        try {
+            score(Paths.get(FileManager.USER_FILE), Paths.get(FileManager.MOVIE_FILE), output, workers, strategy, topN);
+        } catch (IOException e) {
+            System.out.println("Batch scoring failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch scoring interrupted");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Score every user in the users file with the given number of worker processes and
+     * write "username,id;id;..." lines sorted by username. Returns the number of users.
+     */
+    public static long score(Path usersFile, Path moviesFile, Path output, int workers, String strategy, int topN)
+            throws IOException, InterruptedException {
+        // Fail before starting any worker rather than have every shard score against nothing
+        if (!Files.isRegularFile(moviesFile) || Files.size(moviesFile) == 0) {
+            throw new IOException("Movie file missing or empty: " + moviesFile);
+        }
+        if (!Files.isRegularFile(usersFile)) {
+            throw new IOException("User file not found: " + usersFile);
+        }
+        long start = System.nanoTime();
+        Path outputDir = output.toAbsolutePath().getParent();
+        Files.createDirectories(outputDir);
+        Path partDir = Files.createTempDirectory(outputDir, "batch-parts");
+
+        List<Path> parts = new ArrayList<>();
+        List<Process> processes = new ArrayList<>();
+        Throwable failure = null;
+        try {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int shard = 0; shard < workers; shard++) {
+                Path part = partDir.resolve(String.format("part-%05d.csv", shard));
+                parts.add(part);
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "-Dbatch.strategy=" + strategy, "-Dbatch.topN=" + topN, BatchScorer.class.getName(),
+                        "--worker", String.valueOf(shard), String.valueOf(workers),
+                        usersFile.toAbsolutePath().toString(), moviesFile.toAbsolutePath().toString(),
+                        part.toString());
+                processes.add(builder.inheritIO().start());
+            }
+
+            for (int shard = 0; shard < workers; shard++) {
+                int exitCode = processes.get(shard).waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker " + shard + " exited with code " + exitCode);
+                }
+            }
+            long scored = System.nanoTime() - start;
+
+            long users = mergeSorted(parts, output);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Batch scored %d users with %d workers in %.1f s (%.0f users/s, merge %.1f s) into %s%n",
+                    users, workers, elapsed / 1e9, users / (elapsed / 1e9), (elapsed - scored) / 1e9, output);
+            return users;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            cleanUp(processes, partDir, failure);
+        }
+    }
+
+    /**
+     * Stop the workers and delete the part directory with everything left in it, including
+     * the run files of a worker that failed. A cleanup error is added to the failure being
+     * thrown as suppressed rather than replacing it.
+     */
+    private static void cleanUp(List<Process> processes, Path partDir, Throwable failure) throws IOException {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        try {
+            // A worker still exiting could write another file once the directory is emptied
+            for (Process process : processes) {
+                process.waitFor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(partDir)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(partDir);
+        } catch (IOException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Worker side: score the users of one shard and write them to a sorted part file
+     */
+    public static long scoreShard(int shard, int shards, Path usersFile, Path moviesFile, Path part,
+                                  String strategy, int topN) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Movie> movies = FileManager.loadMovies(moviesFile);
+        if (movies.isEmpty()) {
+            throw new IOException("No movies loaded from " + moviesFile);
+        }
+        RecommendationEngine engine = new RecommendationEngine(movies);
+        engine.setCurrentStrategy(strategy);
+        if (strategy.equals("als")) {
+            engine.setAlsModel(FileManager.loadAlsModel());
+        }
+        ShardWriter writer = new ShardWriter(engine, shard, shards, topN, part);
+
+        try (FileChannel channel = FileChannel.open(usersFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+
+            // Map the file in windows; a line cut off at the end of a window starts the next one
+            while (position < size) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int limit = (int) length;
+                int lineStart = 0;
+
+                for (int i = 0; i < limit; i++) {
+                    if (map.get(i) == '\n') {
+                        writer.line(map, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+
+                if (last) {
+                    // Last record without a trailing newline
+                    if (lineStart < limit) {
+                        writer.line(map, lineStart, limit);
+                    }
+                    position = size;
+                } else if (lineStart == 0) {
+                    throw new IOException("User line longer than " + MAP_WINDOW + " bytes");
+                } else {
+                    position += lineStart;
+                }
+            }
+        }
+        writer.finish();
+
+        System.out.printf("Worker %d/%d: scored %d of %d users in %.1f s%n", shard + 1, shards, writer.users,
+                writer.total, (System.nanoTime() - start) / 1e9);
+        return writer.users;
+    }
+
+    /**
+     * Shard owning a username, stable across processes
+     */
+    public static int shardOf(String username, int shards) {
+        return (int) Long.remainderUnsigned(UserIndex.hash(username), shards);
+    }
+
+    /**
+     * Merge files of username-sorted lines (each with a header) into one sorted file,
+     * written to a temp file and moved into place. Returns the number of lines merged.
+     */
+    public static long mergeSorted(List<Path> inputs, Path output) throws IOException {
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        PriorityQueue<PartReader> heads = new PriorityQueue<>((a, b) -> BY_USERNAME.compare(a.line, b.line));
+        long lines = 0;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            try {
+                for (Path input : inputs) {
+                    PartReader reader = new PartReader(input);
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+
+                writer.write(HEADER);
+                writer.newLine();
+                while (!heads.isEmpty()) {
+                    PartReader reader = heads.poll();
+                    writer.write(reader.line);
+                    writer.newLine();
+                    lines++;
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } finally {
+                for (PartReader reader : heads) {
+                    reader.close();
+                }
+            }
+        }
+
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return lines;
+    }
+
+    // Score one raw users.csv line, null if it cannot be parsed
+    private static String score(RecommendationEngine engine, String line, int topN) {
+        User user;
+        try {
+            user = FileManager.parseUser(line);
+        } catch (RuntimeException e) {
+            System.out.println("Error parsing user line: " + line);
+            return null;
+        }
+        if (user == null) {
+            return null;
+        }
+
+        StringBuilder result = new StringBuilder(user.getUsername()).append(',');
+        List<Movie> recommendations = engine.getRecommendations(user, topN);
+        for (int i = 0; i < recommendations.size(); i++) {
+            if (i > 0) result.append(';');
+            result.append(recommendations.get(i).getId());
+        }
+        return result.toString();
+    }
+
+    private static Path writeSorted(List<String> lines, Path file) throws IOException {
+        lines.sort(BY_USERNAME);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    private static String usernameOf(String line) {
+        int comma = line.indexOf(',');
+        return comma < 0 ? line : line.substring(0, comma);
+    }
+
+    /**
+     * Scores the lines of one shard and spills them in sorted runs of RUN_SIZE
+     */
+    private static class ShardWriter {
+        private final RecommendationEngine engine;
+        private final int shard;
+        private final int shards;
+        private final int topN;
+        private final Path part;
+        private final List<String> results = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        private byte[] bytes = new byte[256];
+        private boolean header = true;
+        private long users;
+        private long total;
+
+        ShardWriter(RecommendationEngine engine, int shard, int shards, int topN, Path part) {
+            this.engine = engine;
+            this.shard = shard;
+            this.shards = shards;
+            this.topN = topN;
+            this.part = part;
+        }
+
+        void line(MappedByteBuffer map, int from, int to) throws IOException {
+            if (to > from && map.get(to - 1) == '\r') {
+                to--;
+            }
+            if (header) {
+                header = false;
+                return;
+            }
+            int comma = from;
+            while (comma < to && map.get(comma) != ',') {
+                comma++;
+            }
+            if (comma == from) {
+                return;
+            }
+            total++;
+
+            // Only the username is decoded for users of other shards
+            if (bytes.length < to - from) {
+                bytes = new byte[Math.max(bytes.length * 2, to - from)];
+            }
+            map.get(from, bytes, 0, comma - from);
+            String username = new String(bytes, 0, comma - from, StandardCharsets.UTF_8).trim();
+            if (shardOf(username, shards) != shard) {
+                return;
+            }
+
+            map.get(from, bytes, 0, to - from);
+            String result = score(engine, new String(bytes, 0, to - from, StandardCharsets.UTF_8), topN);
+            if (result != null) {
+                results.add(result);
+                users++;
+            }
+            if (results.size() == RUN_SIZE) {
+                spill();
+            }
+        }
+
+        void finish() throws IOException {
+            if (runs.isEmpty()) {
+                writeSorted(results, part);
+                return;
+            }
+            if (!results.isEmpty()) {
+                spill();
+            }
+            mergeSorted(runs, part);
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+
+        private void spill() throws IOException {
+            runs.add(writeSorted(results, part.resolveSibling(part.getFileName() + ".run" + runs.size())));
+            results.clear();
+        }
+    }
+
+    /**
+     * Sorted input with its current line
+     */
+    private static class PartReader implements Closeable {
+        private final BufferedReader reader;
+        private String line;
+
+        PartReader(Path file) throws IOException {
+            this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            reader.readLine(); // skip header
+        }
+
+        boolean advance() throws IOException {
+            line = reader.readLine();
+            return line != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
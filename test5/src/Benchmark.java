@@ -0,0 +1,804 @@
+import java.io.*;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Micro benchmarks on generated data, run with: java Benchmark [name]
+ */
+public class Benchmark {
+    private static final String[] GENRES = {
+            "Action", "Animation", "Comedy", "Crime", "Drama", "Fantasy", "Horror",
+            "Romance", "Sci-Fi", "Thriller", "War", "Mystery"
+    };
+
+    public static void main(String[] args) {
+        String name = args.length > 0 ? args[0] : "all";
+
+        if (name.equals("rerank") || name.equals("all")) {
+            benchmarkRerank();
+        }
+        if (name.equals("save") || name.equals("all")) {
+            benchmarkSave();
+        }
+        if (name.equals("users") || name.equals("all")) {
+            benchmarkUserStore();
+        }
+        if (name.equals("history") || name.equals("all")) {
+            benchmarkHistoryMemory();
+        }
+        if (name.equals("als") || name.equals("all")) {
+            benchmarkAls();
+        }
+        if (name.equals("query") || name.equals("all")) {
+            benchmarkFilteredQuery();
+        }
+        if (name.equals("eval") || name.equals("all")) {
+            benchmarkEvaluation();
+        }
+        if (name.equals("stream") || name.equals("all")) {
+            benchmarkStreaming();
+        }
+        if (name.equals("batch") || name.equals("all")) {
+            benchmarkBatchScoring();
+        }
+        if (name.equals("sessions") || name.equals("all")) {
+            benchmarkSessions();
+        }
+    }
+
+    /**
+     * Latency added by diversity re-ranking on top of the genre strategy
+     */
+    private static void benchmarkRerank() {
+        System.out.println("=== Diversity re-ranking ===");
+        int topN = 10;
+        int[] catalogueSizes = {500, 1000, 2000};
+
+        for (int size : catalogueSizes) {
+            Map<String, Movie> movies = generateMovies(size, 42);
+            User user = generateUser("bench", movies, 20, 7);
+            RecommendationEngine engine = new RecommendationEngine(movies);
+
+            long plain = timeRecommendations(engine, user, topN, 20);
+            engine.setDiversityReranker(new DiversityReranker(DiversityReranker.DEFAULT_LAMBDA, 0));
+            long diversified = timeRecommendations(engine, user, topN, 20);
+
+            System.out.printf("catalogue=%d plain=%dus diversified=%dus added=%dus%n",
+                    size, plain / 1000, diversified / 1000, (diversified - plain) / 1000);
+        }
+
+        // Re-ranking alone only depends on the pool size, not on the catalogue
+        DiversityReranker reranker = new DiversityReranker(DiversityReranker.DEFAULT_LAMBDA, 0);
+        for (int n : new int[]{5, 10, 20, 50}) {
+            List<Movie> pool = new ArrayList<>(generateMovies(n * RecommendationEngine.CANDIDATE_POOL_FACTOR, 7).values());
+            int iterations = 20000;
+            for (int i = 0; i < iterations; i++) {
+                reranker.rerank(pool, n);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                reranker.rerank(pool, n);
+            }
+            long perCall = (System.nanoTime() - start) / iterations;
+            System.out.printf("topN=%d pool=%d rerank=%dns%n", n, pool.size(), perCall);
+        }
+    }
+
+    /**
+     * Users file save throughput, old PrintWriter + String concatenation against the
+     * FileChannel writer. Run with -Xmx2g for the largest size.
+     */
+    private static void benchmarkSave() {
+        System.out.println("=== users.csv save ===");
+        Map<String, Movie> movies = generateMovies(10000, 42);
+        List<String> ids = new ArrayList<>(movies.keySet());
+
+        try {
+            Path dir = Files.createTempDirectory("save-bench");
+            Path target = dir.resolve("users.csv");
+            Path index = dir.resolve("users.idx");
+
+            for (int size : new int[]{100000, 1000000, 2000000}) {
+                List<User> users = generateUsers(size, ids, 4, 6);
+
+                // Second round of each is reported, the first one warms up the JIT
+                long legacy = 0;
+                long elapsed = 0;
+                long bytes = 0;
+                for (int round = 0; round < 2; round++) {
+                    long legacyStart = System.nanoTime();
+                    legacySave(users, target.toString());
+                    legacy = System.nanoTime() - legacyStart;
+
+                    long start = System.nanoTime();
+                    bytes = FileManager.writeUsers(users, target, index);
+                    elapsed = System.nanoTime() - start;
+                }
+                long legacyBytes = Files.size(target);
+
+                System.out.printf("users=%d legacy=%dms (%.1f MB/s) channel=%dms (%.1f MB/s, %d MB, fsync and index included)%n",
+                        size, legacy / 1000000, legacyBytes / 1e6 / (legacy / 1e9),
+                        elapsed / 1000000, bytes / 1e6 / (elapsed / 1e9), bytes / 1000000);
+            }
+
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.out.println("Error running save benchmark: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Startup and login cost of the lazy UserStore against parsing every user up front
+     */
+    private static void benchmarkUserStore() {
+        System.out.println("=== Lazy user loading ===");
+        Map<String, Movie> movies = generateMovies(10000, 42);
+        List<String> ids = new ArrayList<>(movies.keySet());
+
+        try {
+            Path dir = Files.createTempDirectory("users-bench");
+            Path usersFile = dir.resolve("users.csv");
+            Path indexFile = dir.resolve("users.idx");
+
+            for (int size : new int[]{100000, 1000000}) {
+                FileManager.writeUsers(generateUsers(size, ids, 4, 6), usersFile, indexFile);
+                System.gc();
+
+                long eagerStart = System.nanoTime();
+                Map<String, User> loaded = new HashMap<>();
+                try (BufferedReader reader = Files.newBufferedReader(usersFile)) {
+                    String line;
+                    reader.readLine();
+                    while ((line = reader.readLine()) != null) {
+                        User user = FileManager.parseUser(line);
+                        loaded.put(user.getUsername(), user);
+                    }
+                }
+                long eager = System.nanoTime() - eagerStart;
+                loaded.clear();
+
+                long openStart = System.nanoTime();
+                UserStore store = new UserStore(usersFile, indexFile, 1000);
+                long open = System.nanoTime() - openStart;
+
+                Random random = new Random(1);
+                int lookups = 20000;
+                long lookupStart = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    store.get("user" + random.nextInt(size));
+                }
+                long lookup = (System.nanoTime() - lookupStart) / lookups;
+
+                Files.delete(indexFile);
+                long rebuildStart = System.nanoTime();
+                new UserStore(usersFile, indexFile, 1000);
+                long rebuild = System.nanoTime() - rebuildStart;
+
+                System.out.printf("users=%d eagerLoad=%dms open=%.2fms rebuildIndex=%dms login=%dus resident=%d%n",
+                        size, eager / 1000000, open / 1e6, rebuild / 1000000, lookup / 1000, store.residentCount());
+            }
+
+            Files.deleteIfExists(usersFile);
+            Files.deleteIfExists(indexFile);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.out.println("Error running user store benchmark: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Heap used by watch history: one String per "M0000001@2025-07-12" entry in an
+     * ArrayList (the old representation) against the varint-encoded History
+     */
+    private static void benchmarkHistoryMemory() {
+        System.out.println("=== History memory ===");
+        int users = 100000;
+        int entriesPerUser = 50;
+        Map<String, Movie> movies = generateMovies(20000, 42);
+        List<String> ids = new ArrayList<>(movies.keySet());
+        Catalogue.build(1, movies);
+        LocalDate start = LocalDate.of(2020, 1, 1);
+
+        long baseline = usedHeap();
+        List<List<String>> oldHistories = new ArrayList<>(users);
+        Random random = new Random(3);
+        for (int u = 0; u < users; u++) {
+            List<String> history = new ArrayList<>();
+            for (int i = 0; i < entriesPerUser; i++) {
+                // Parsing the file creates a new String for every entry
+                history.add(new String(ids.get(random.nextInt(ids.size())) + "@" + start.plusDays(random.nextInt(2000))));
+            }
+            oldHistories.add(history);
+        }
+        long oldBytes = usedHeap() - baseline;
+        oldHistories = null;
+
+        baseline = usedHeap();
+        List<History> newHistories = new ArrayList<>(users);
+        random = new Random(3);
+        long appendStart = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            History history = new History();
+            for (int i = 0; i < entriesPerUser; i++) {
+                history.addMovie(ids.get(random.nextInt(ids.size())), start.plusDays(random.nextInt(2000)));
+            }
+            history.compact();
+            newHistories.add(history);
+        }
+        long appendNanos = System.nanoTime() - appendStart;
+        long newBytes = usedHeap() - baseline;
+
+        long iterateStart = System.nanoTime();
+        long[] checksum = {0};
+        for (History history : newHistories) {
+            history.forEach((ordinal, epochDay) -> checksum[0] += ordinal);
+        }
+        long iterateNanos = System.nanoTime() - iterateStart;
+
+        long entries = (long) users * entriesPerUser;
+        System.out.printf("entries=%d list=%d MB (%.1f B/entry) compact=%d MB (%.1f B/entry) ratio=%.1fx%n",
+                entries, oldBytes >> 20, (double) oldBytes / entries, newBytes >> 20, (double) newBytes / entries,
+                (double) oldBytes / newBytes);
+        System.out.printf("append=%.0fns/entry iterate=%.1fns/entry (checksum %d)%n",
+                (double) appendNanos / entries, (double) iterateNanos / entries, checksum[0]);
+    }
+
+    /**
+     * ALS training time per iteration, serving latency and model save/load time on
+     * generated interactions with a skewed item popularity
+     */
+    private static void benchmarkAls() {
+        System.out.println("=== ALS ===");
+        int items = 20000;
+        String[] itemIds = new String[items];
+        for (int i = 0; i < items; i++) {
+            itemIds[i] = String.format("M%07d", i + 1);
+        }
+
+        for (int users : new int[]{100000, 200000}) {
+            int perUser = 10;
+            Random random = new Random(users);
+            AlsTrainer trainer = new AlsTrainer(AlsTrainer.DEFAULT_FACTORS, AlsTrainer.DEFAULT_LAMBDA,
+                    AlsTrainer.DEFAULT_ALPHA, 2);
+            for (int u = 0; u < users; u++) {
+                // Each user leans towards one slice of the catalogue, popular items are picked more often
+                int slice = random.nextInt(20) * (items / 20);
+                Set<String> picked = new LinkedHashSet<>();
+                while (picked.size() < perUser) {
+                    int offset = (int) (items / 20 * Math.pow(random.nextDouble(), 2));
+                    int item = random.nextInt(4) == 0 ? (int) (items * Math.pow(random.nextDouble(), 3)) : slice + offset;
+                    picked.add(itemIds[item]);
+                }
+                float[] weights = new float[perUser];
+                Arrays.fill(weights, AlsModel.HISTORY_WEIGHT);
+                trainer.addUser(picked.toArray(new String[0]), weights);
+            }
+
+            System.out.printf("users=%d items=%d interactions=%d factors=%d threads=%d%n", users, items,
+                    trainer.getInteractionCount(), AlsTrainer.DEFAULT_FACTORS, Runtime.getRuntime().availableProcessors());
+            LatencyHistogram iterations = Metrics.histogram("als.iteration.ns");
+            iterations.reset();
+            long trainStart = System.nanoTime();
+            AlsModel model = trainer.train(Runtime.getRuntime().availableProcessors());
+            long train = System.nanoTime() - trainStart;
+
+            // Serving folds each user's live history into a vector, then scores the items
+            User[] served = new User[100];
+            for (int i = 0; i < served.length; i++) {
+                served[i] = new User("served" + i, "");
+                for (int j = 0; j < perUser; j++) {
+                    served[i].getHistory().addMovie(itemIds[random.nextInt(items)]);
+                }
+            }
+            int requests = 10000;
+            long[] samples = new long[requests];
+            long[] foldIns = new long[requests];
+            for (int r = 0; r < requests; r++) {
+                User user = served[random.nextInt(served.length)];
+                long start = System.nanoTime();
+                float[] vector = model.userVector(user);
+                foldIns[r] = System.nanoTime() - start;
+                model.recommend(vector, 10, id -> true);
+                samples[r] = System.nanoTime() - start;
+            }
+            Arrays.sort(samples);
+            long foldIn = Arrays.stream(foldIns).sum() / requests;
+
+            try {
+                Path file = Files.createTempFile("als", ".bin");
+                long saveStart = System.nanoTime();
+                model.save(file);
+                long save = System.nanoTime() - saveStart;
+                long loadStart = System.nanoTime();
+                AlsModel.load(file);
+                long load = System.nanoTime() - loadStart;
+                System.out.printf("train=%.1fs (%.0f ms/iteration) serve p50=%dus p99=%dus foldIn=%dus save=%dms load=%dms size=%d MB%n",
+                        train / 1e9, iterations.getMean() / 1e6, samples[requests / 2] / 1000, samples[requests * 99 / 100] / 1000, foldIn / 1000,
+                        save / 1000000, load / 1000000, Files.size(file) >> 20);
+                Files.delete(file);
+            } catch (IOException e) {
+                System.out.println("Error saving ALS model: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Filtered queries answered through the catalogue indexes against filtering the
+     * full recommendation list afterwards
+     */
+    private static void benchmarkFilteredQuery() {
+        System.out.println("=== Filtered queries ===");
+        int topN = 10;
+
+        for (int size : new int[]{100_000, 400_000}) {
+            Map<String, Movie> movies = generateMovies(size, 42);
+            User user = generateUser("bench", movies, 50, 7);
+            RecommendationEngine engine = new RecommendationEngine(movies);
+
+            RecommendationQuery narrow = new RecommendationQuery(topN);
+            narrow.setGenres(Collections.singleton("Drama"));
+            narrow.setYearRange(2020, 2025);
+            narrow.setMinRating(9.0);
+            RecommendationQuery broad = new RecommendationQuery(topN);
+            broad.setMinRating(8.0);
+
+            for (RecommendationQuery query : new RecommendationQuery[]{narrow, broad}) {
+                int matches = Catalogue.build(1, movies).find(query).size();
+                for (String strategy : new String[]{"genre", "rating", "year"}) {
+                    engine.setCurrentStrategy(strategy);
+                    long indexed = timeQuery(engine, user, query, 20);
+                    long postFiltered = timePostFilter(engine, user, query, size, 5);
+                    System.out.printf("catalogue=%d query=[%s] matches=%d strategy=%s indexed=%dus post-filter=%dus%n",
+                            size, query, matches, strategy, indexed / 1000, postFiltered / 1000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Offline evaluation streamed over a generated users file much larger than the heap
+     * needed to evaluate it. Each user mostly watches one genre, so the genre strategy
+     * should score above the others.
+     */
+    private static void benchmarkEvaluation() {
+        System.out.println("=== Offline evaluation ===");
+        int userCount = 1_000_000;
+        int perUser = 8;
+        Map<String, Movie> movies = generateMovies(1000, 42);
+        Map<String, List<String>> idsByGenre = new HashMap<>();
+        for (Movie movie : movies.values()) {
+            idsByGenre.computeIfAbsent(movie.getGenre(), g -> new ArrayList<>()).add(movie.getId());
+        }
+        List<String> ids = new ArrayList<>(movies.keySet());
+        LocalDate firstDay = LocalDate.of(2024, 1, 1);
+
+        try {
+            Path usersFile = Files.createTempFile("eval-bench", ".csv");
+            Random random = new Random(3);
+            try (BufferedWriter writer = Files.newBufferedWriter(usersFile)) {
+                writer.write("Username,Password,Watchlist,History");
+                writer.newLine();
+                for (int u = 0; u < userCount; u++) {
+                    List<String> favourite = idsByGenre.get(GENRES[random.nextInt(GENRES.length)]);
+                    StringBuilder line = new StringBuilder("user").append(u).append(",pw,,");
+                    for (int i = 0; i < perUser; i++) {
+                        String id = random.nextInt(4) == 0 ? ids.get(random.nextInt(ids.size()))
+                                : favourite.get(random.nextInt(favourite.size()));
+                        if (i > 0) line.append(';');
+                        line.append(id).append('@').append(firstDay.plusDays(random.nextInt(365)));
+                    }
+                    writer.write(line.toString());
+                    writer.newLine();
+                }
+            }
+
+            // Sampled without forcing a GC, so this includes garbage not yet collected
+            long[] peak = {0};
+            Runtime runtime = Runtime.getRuntime();
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory());
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            sampler.setDaemon(true);
+            sampler.start();
+
+            Evaluation evaluation = new Evaluation(movies, Evaluation.DEFAULT_K,
+                    Runtime.getRuntime().availableProcessors(), Evaluation.DEFAULT_TEST_FRACTION, null);
+            evaluation.run(usersFile);
+            sampler.interrupt();
+            evaluation.printReport();
+            System.out.printf("users file=%d MB, max heap=%d MB, peak used heap=%d MB%n",
+                    Files.size(usersFile) >> 20, Runtime.getRuntime().maxMemory() >> 20, peak[0] >> 20);
+
+            Files.deleteIfExists(usersFile);
+        } catch (IOException e) {
+            System.out.println("Error running evaluation benchmark: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cost of each further page of an infinite scroll: continuing one cursor against
+     * re-issuing the request with a larger topN
+     */
+    private static void benchmarkStreaming() {
+        System.out.println("=== Streaming pages ===");
+        int pageSize = 20;
+        int pages = 50;
+        Map<String, Movie> movies = generateMovies(200_000, 42);
+        User user = generateUser("bench", movies, 50, 7);
+        RecommendationEngine engine = new RecommendationEngine(movies);
+
+        for (String strategy : new String[]{"genre", "rating", "year"}) {
+            engine.setCurrentStrategy(strategy);
+            for (int warmup = 0; warmup < 5; warmup++) {
+                engine.openCursor(user, new RecommendationQuery(pageSize)).nextPage(pageSize * pages);
+                engine.getRecommendations(user, pageSize * pages);
+            }
+
+            long[] cursorPages = new long[pages];
+            RecommendationCursor cursor = engine.openCursor(user, new RecommendationQuery(pageSize));
+            for (int page = 0; page < pages; page++) {
+                long start = System.nanoTime();
+                cursor.nextPage(pageSize);
+                cursorPages[page] = System.nanoTime() - start;
+            }
+
+            long[] reissued = new long[pages];
+            for (int page = 0; page < pages; page++) {
+                long start = System.nanoTime();
+                engine.getRecommendations(user, pageSize * (page + 1));
+                reissued[page] = System.nanoTime() - start;
+            }
+
+            long cursorTotal = Arrays.stream(cursorPages).sum();
+            long reissuedTotal = Arrays.stream(reissued).sum();
+            System.out.printf("strategy=%s first page cursor=%dus reissue=%dus, page %d cursor=%dus reissue=%dus, "
+                            + "%d pages total cursor=%dus reissue=%dus%n",
+                    strategy, cursorPages[0] / 1000, reissued[0] / 1000, pages, cursorPages[pages - 1] / 1000,
+                    reissued[pages - 1] / 1000, pages, cursorTotal / 1000, reissuedTotal / 1000);
+        }
+    }
+
+    /**
+     * Sharded batch scoring with one worker process against several, up to the number of
+     * cores; the merged output must not depend on the number of workers
+     */
+    private static void benchmarkBatchScoring() {
+        System.out.println("=== Sharded batch scoring ===");
+        Map<String, Movie> movies = generateMovies(10000, 42);
+        List<String> ids = new ArrayList<>(movies.keySet());
+
+        try {
+            Path dir = Files.createTempDirectory("batch-bench");
+            Path moviesFile = dir.resolve("movies.csv");
+            Path usersFile = dir.resolve("users.csv");
+            Path output = dir.resolve("recommendations.csv");
+
+            try (BufferedWriter writer = Files.newBufferedWriter(moviesFile)) {
+                writer.write("id,title,genre,year,rating");
+                writer.newLine();
+                for (Movie movie : movies.values()) {
+                    writer.write(String.join(",", movie.getId(), movie.getTitle(), movie.getGenre(),
+                            String.valueOf(movie.getYear()), String.valueOf(movie.getRating())));
+                    writer.newLine();
+                }
+            }
+            FileManager.writeUsers(generateUsers(500000, ids, 4, 12), usersFile, dir.resolve("users.idx"));
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            System.out.printf("cores=%d%n", cores);
+            byte[] reference = null;
+            long single = 0;
+            for (int workers : new TreeSet<>(Arrays.asList(1, 2, 4, cores))) {
+                long start = System.nanoTime();
+                long users = BatchScorer.score(usersFile, moviesFile, output, workers, "genre", 10);
+                long elapsed = System.nanoTime() - start;
+                byte[] merged = Files.readAllBytes(output);
+                if (reference == null) {
+                    reference = merged;
+                    single = elapsed;
+                }
+                System.out.printf("workers=%d users=%d time=%.1fs throughput=%.0f users/s speedup=%.2fx sameOutput=%b%n",
+                        workers, users, elapsed / 1e9, users / (elapsed / 1e9), single / (double) elapsed,
+                        Arrays.equals(reference, merged));
+            }
+
+            // A missing movie file must fail the run instead of writing empty recommendations
+            try {
+                BatchScorer.score(usersFile, dir.resolve("missing.csv"), output, 2, "genre", 10);
+                System.out.println("missing movie file: not detected");
+            } catch (IOException e) {
+                System.out.println("missing movie file: failed fast (" + e.getMessage() + ")");
+            }
+
+            for (Path file : new Path[]{moviesFile, usersFile, dir.resolve("users.idx"), output}) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.out.println("Error running batch benchmark: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long timeQuery(RecommendationEngine engine, User user, RecommendationQuery query, int iterations) {
+        for (int i = 0; i < 10; i++) {
+            engine.getRecommendations(user, query);
+        }
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            engine.getRecommendations(user, query);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[iterations / 2];
+    }
+
+    // Rank the whole catalogue and keep the first topN results that pass the filters
+    private static long timePostFilter(RecommendationEngine engine, User user, RecommendationQuery query,
+                                       int catalogueSize, int iterations) {
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            List<Movie> filtered = new ArrayList<>();
+            for (Movie movie : engine.getRecommendations(user, catalogueSize)) {
+                if (query.matches(movie) && filtered.size() < query.getTopN()) {
+                    filtered.add(movie);
+                }
+            }
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[iterations / 2];
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Load test of the session manager: open a few hundred thousand sessions, keep half
+     * of them busy from several threads and check the idle half expires on time while
+     * the busy half survives, then that the rest expires once touching stops
+     */
+    private static void benchmarkSessions() {
+        System.out.println("=== Sessions ===");
+        int sessionCount = 300_000;
+        int userCount = 10_000;
+        int threads = 4;
+        long idleTimeout = 5000;
+        long tick = 50;
+        Map<String, Movie> movies = generateMovies(1000, 42);
+        List<User> users = generateUsers(userCount, new ArrayList<>(movies.keySet()), 4, 6);
+
+        try {
+            Path dir = Files.createTempDirectory("sessions-bench");
+            Path usersFile = dir.resolve("users.csv");
+            Path indexFile = dir.resolve("users.idx");
+            FileManager.writeUsers(users, usersFile, indexFile);
+            UserStore store = new UserStore(usersFile, indexFile, userCount);
+            UserPersister persister = new UserPersister(store);
+            SessionManager manager = new SessionManager(store, persister, idleTimeout, tick);
+            long flushesBefore = Metrics.counter("persist.flushes").sum();
+
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            String[] tokens = new String[sessionCount];
+            long openStart = System.nanoTime();
+            for (int i = 0; i < sessionCount; i++) {
+                tokens[i] = manager.open(store.get(users.get(i % userCount).getUsername()));
+            }
+            long openEnd = System.nanoTime();
+            System.gc();
+            long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+            // Even sessions are touched until the odd ones have expired; some users change meanwhile
+            int active = sessionCount / 2;
+            LongAdder touches = new LongAdder();
+            AtomicBoolean stop = new AtomicBoolean();
+            List<Thread> touchers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                Thread toucher = new Thread(() -> {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    while (!stop.get()) {
+                        User user = manager.touch(tokens[random.nextInt(active) * 2]);
+                        if (user == null) {
+                            throw new IllegalStateException("Active session expired");
+                        }
+                        if (random.nextInt(10000) == 0) {
+                            persister.markDirty(user);
+                        }
+                        count++;
+                    }
+                    touches.add(count);
+                });
+                toucher.start();
+                touchers.add(toucher);
+            }
+
+            long touchStart = System.nanoTime();
+            long idleDeadline = openEnd + idleTimeout * 1000000;
+            while (manager.size() > active) {
+                Thread.sleep(1);
+            }
+            long idleExpired = System.nanoTime();
+            // Keep going past a full timeout so only touched sessions can be left
+            Thread.sleep(idleTimeout);
+            stop.set(true);
+            for (Thread toucher : touchers) {
+                toucher.join();
+            }
+            long touchEnd = System.nanoTime();
+            int survivors = manager.size();
+
+            long activeDeadline = touchEnd + idleTimeout * 1000000;
+            while (manager.size() > 0) {
+                Thread.sleep(1);
+            }
+            long activeExpired = System.nanoTime();
+            manager.shutdown();
+            persister.close();
+
+            LatencyHistogram ticks = Metrics.histogram("sessions.tick.ns");
+            System.out.printf("sessions=%d open=%.2fus/session heap=%d bytes/session%n", sessionCount,
+                    (openEnd - openStart) / 1e3 / sessionCount, (heapAfter - heapBefore) / sessionCount);
+            System.out.printf("touch threads=%d touches=%d (%.0f ns/touch, %.1f M/s) survivors=%d of %d active%n",
+                    threads, touches.sum(), (touchEnd - touchStart) / (double) touches.sum(),
+                    touches.sum() / ((touchEnd - touchStart) / 1e3), survivors, active);
+            System.out.printf("idle half expired %dms after its deadline, busy half %dms after its deadline (tick %dms)%n",
+                    (idleExpired - idleDeadline) / 1000000, (activeExpired - activeDeadline) / 1000000, tick);
+            System.out.printf("wheel ticks=%d p50=%.1fus p99=%.1fus max=%.1fms, expired=%d rescheduled=%d flushes=%d%n",
+                    ticks.getCount(), ticks.getPercentile(50) / 1e3, ticks.getPercentile(99) / 1e3, ticks.getMax() / 1e6,
+                    Metrics.counter("sessions.expired").sum(), Metrics.counter("sessions.rescheduled").sum(),
+                    Metrics.counter("persist.flushes").sum() - flushesBefore);
+
+            // A change whose write-behind flush failed must still be written when the session expires.
+            // The persister's own interval is too long to retry, so only the expiry can save it.
+            UserPersister idlePersister = new UserPersister(store, 600_000, Integer.MAX_VALUE, 1024);
+            SessionManager shortSessions = new SessionManager(store, idlePersister, 200, 20);
+            User user = store.get(users.get(0).getUsername());
+            shortSessions.open(user);
+            String movieId = movies.keySet().iterator().next();
+            user.getWatchlist().addMovie(movieId);
+            idlePersister.markDirty(user);
+            Path aside = dir.resolve("users.aside");
+            Files.move(usersFile, aside);
+            boolean failed = !idlePersister.flush();
+            Files.move(aside, usersFile);
+            // Checked before shutdown and close, either of which would flush as well
+            long expiryStart = System.nanoTime();
+            boolean saved = false;
+            while (!saved && System.nanoTime() - expiryStart < 2_000_000_000L) {
+                Thread.sleep(5);
+                for (String line : Files.readAllLines(usersFile)) {
+                    saved |= line.startsWith(user.getUsername() + ",") && line.contains(movieId);
+                }
+            }
+            System.out.printf("flush failed=%b, change after expiry: %s in %dms, sessions left=%d%n", failed,
+                    saved ? "written" : "LOST", (System.nanoTime() - expiryStart) / 1000000, shortSessions.size());
+            shortSessions.shutdown();
+            idlePersister.close();
+
+            Files.deleteIfExists(usersFile);
+            Files.deleteIfExists(indexFile);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.out.println("Error running session benchmark: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The original saveUsers loop, kept as the baseline
+     */
+    private static void legacySave(List<User> users, String file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println("Username,Password,Watchlist,History");
+            for (User user : users) {
+                String watchlistStr = "";
+                List<String> watchlistIds = user.getWatchlist().getMovieIds();
+                for (int i = 0; i < watchlistIds.size(); i++) {
+                    if (i > 0) watchlistStr += ";";
+                    watchlistStr += watchlistIds.get(i);
+                }
+                String historyStr = "";
+                List<String> historyIds = user.getHistory().getMovieIds();
+                for (int i = 0; i < historyIds.size(); i++) {
+                    if (i > 0) historyStr += ";";
+                    historyStr += historyIds.get(i);
+                }
+                writer.println(user.getUsername() + "," + user.getPassword() + "," + watchlistStr + "," + historyStr);
+            }
+        }
+    }
+
+    /**
+     * Generate users sharing movie id strings so millions of them fit in a small heap
+     */
+    static List<User> generateUsers(int count, List<String> ids, int watchlistSize, int historySize) {
+        Random random = new Random(count);
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String username = "user" + i;
+            User user = new User(username, "pw" + i);
+            for (int j = 0; j < watchlistSize; j++) {
+                user.getWatchlist().addMovie(ids.get(random.nextInt(ids.size())));
+            }
+            for (int j = 0; j < historySize; j++) {
+                user.getHistory().addMovie(ids.get(random.nextInt(ids.size())));
+            }
+            users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * Median recommendation latency in nanoseconds
+     */
+    private static long timeRecommendations(RecommendationEngine engine, User user, int topN, int iterations) {
+        for (int i = 0; i < 10; i++) {
+            engine.getRecommendations(user, topN);
+        }
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            engine.getRecommendations(user, topN);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[iterations / 2];
+    }
+
+    /**
+     * Generate a catalogue with ids M0000001.. and random genre, year and rating
+     */
+    static Map<String, Movie> generateMovies(int count, long seed) {
+        Random random = new Random(seed);
+        Map<String, Movie> movies = new HashMap<>();
+        for (int i = 1; i <= count; i++) {
+            String id = String.format("M%07d", i);
+            String genre = GENRES[random.nextInt(GENRES.length)];
+            int year = 1950 + random.nextInt(76);
+            double rating = Math.round((5.0 + random.nextDouble() * 4.5) * 10) / 10.0;
+            movies.put(id, new Movie(id, "Movie " + i, genre, year, rating));
+        }
+        return movies;
+    }
+
+    /**
+     * Generate a user with random watched and watchlisted movies from the catalogue
+     */
+    static User generateUser(String username, Map<String, Movie> movies, int watched, long seed) {
+        Random random = new Random(seed);
+        List<String> ids = new ArrayList<>(movies.keySet());
+        User user = new User(username, username + "123");
+        for (int i = 0; i < watched; i++) {
+            user.getHistory().addMovie(ids.get(random.nextInt(ids.size())));
+            if (i % 4 == 0) {
+                user.getWatchlist().addMovie(ids.get(random.nextInt(ids.size())));
+            }
+        }
+        return user;
+    }
+}
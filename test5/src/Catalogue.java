@@ -0,0 +1,213 @@
+import java.util.*;
+
+/**
+ * Immutable snapshot of the movie catalogue together with the indexes derived from it.
+ * A new snapshot is built off the request path and published by swapping a reference,
+ * so readers never lock and always see one consistent version.
+ */
+public class Catalogue {
+    // Highest rating first, then id so the order is deterministic
+    public static final Comparator<Movie> BY_RATING = Comparator.comparingDouble(Movie::getRating).reversed()
+            .thenComparing(Movie::getId);
+    private static final Comparator<Movie> BY_YEAR = Comparator.comparingInt(Movie::getYear).reversed()
+            .thenComparing(BY_RATING);
+
+    private final long version;
+    private final Map<String, Movie> movies;
+    private final Movie[] ratingOrder;
+    private final Movie[] yearOrder;
+    private final List<Movie> byRating;
+    private final List<Movie> byYear;
+    private final Map<String, List<Movie>> byGenre;
+    // Per-genre arrays for filtered queries, one in each sort order
+    private final Map<String, Movie[]> genreRatingOrder;
+    private final Map<String, Movie[]> genreYearOrder;
+    // Lower-cased genre to the genre names as spelled in the data, for case-insensitive filters
+    private final Map<String, List<String>> genreNames;
+
+    private Catalogue(long version, Map<String, Movie> movies) {
+        this.version = version;
+        this.movies = Collections.unmodifiableMap(new HashMap<>(movies));
+
+        // Register ordinals in id order so compact per-user structures sort like the ids
+        String[] ids = movies.keySet().toArray(new String[0]);
+        Arrays.sort(ids);
+        for (String id : ids) {
+            MovieIds.ordinal(id);
+        }
+
+        Movie[] sorted = movies.values().toArray(new Movie[0]);
+        Arrays.sort(sorted, BY_RATING);
+        this.ratingOrder = sorted;
+        this.byRating = Collections.unmodifiableList(Arrays.asList(sorted));
+
+        Movie[] newest = movies.values().toArray(new Movie[0]);
+        Arrays.sort(newest, BY_YEAR);
+        this.yearOrder = newest;
+        this.byYear = Collections.unmodifiableList(Arrays.asList(newest));
+
+        // Walking each global order keeps the per-genre arrays in the same order
+        this.genreRatingOrder = splitByGenre(sorted);
+        this.genreYearOrder = splitByGenre(newest);
+        Map<String, List<Movie>> genres = new HashMap<>();
+        for (Map.Entry<String, Movie[]> entry : genreRatingOrder.entrySet()) {
+            genres.put(entry.getKey(), Collections.unmodifiableList(Arrays.asList(entry.getValue())));
+        }
+        this.byGenre = Collections.unmodifiableMap(genres);
+        this.genreNames = new HashMap<>();
+        for (String genre : genreRatingOrder.keySet()) {
+            genreNames.computeIfAbsent(genre.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(genre);
+        }
+    }
+
+    private static Map<String, Movie[]> splitByGenre(Movie[] ordered) {
+        Map<String, List<Movie>> lists = new HashMap<>();
+        for (Movie movie : ordered) {
+            lists.computeIfAbsent(movie.getGenre(), k -> new ArrayList<>()).add(movie);
+        }
+        Map<String, Movie[]> arrays = new HashMap<>();
+        for (Map.Entry<String, List<Movie>> entry : lists.entrySet()) {
+            arrays.put(entry.getKey(), entry.getValue().toArray(new Movie[0]));
+        }
+        return arrays;
+    }
+
+    /**
+     * Build a snapshot and all of its indexes
+     */
+    public static Catalogue build(long version, Map<String, Movie> movies) {
+        return new Catalogue(version, movies);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return movies.size();
+    }
+
+    public Movie getMovie(String id) {
+        return movies.get(id);
+    }
+
+    public boolean containsMovie(String id) {
+        return movies.containsKey(id);
+    }
+
+    public Map<String, Movie> getMovies() {
+        return movies;
+    }
+
+    /**
+     * All movies, highest rated first
+     */
+    public List<Movie> getByRating() {
+        return byRating;
+    }
+
+    /**
+     * All movies, newest first
+     */
+    public List<Movie> getByYear() {
+        return byYear;
+    }
+
+    /**
+     * Movies of one genre, highest rated first
+     */
+    public List<Movie> getByGenre(String genre) {
+        List<Movie> movies = byGenre.get(genre);
+        return movies != null ? movies : Collections.emptyList();
+    }
+
+    public Set<String> getGenres() {
+        return byGenre.keySet();
+    }
+
+    /**
+     * Movies matching every filter of the query, highest rated first. Genres match
+     * ignoring case. For each genre the rating prefix and the year range are located by
+     * binary search and only the smaller of the two slices is scanned, so the work is
+     * min(movies rated high enough, movies in the year range) per genre. That is close
+     * to the number of matches when either filter is selective, but can be much larger
+     * when both are broad and few movies satisfy both.
+     */
+    public List<Movie> find(RecommendationQuery query) {
+        List<Movie> result = new ArrayList<>();
+        boolean ordered;
+        if (query.getGenres().isEmpty()) {
+            ordered = collect(ratingOrder, yearOrder, query, result);
+        } else {
+            int lists = 0;
+            ordered = true;
+            for (String genre : query.getGenres()) {
+                for (String name : genreNames.getOrDefault(genre.toLowerCase(Locale.ROOT), Collections.emptyList())) {
+                    ordered &= collect(genreRatingOrder.get(name), genreYearOrder.get(name), query, result);
+                    lists++;
+                }
+            }
+            ordered &= lists <= 1;
+        }
+        if (!ordered) {
+            result.sort(BY_RATING);
+        }
+        return result;
+    }
+
+    /**
+     * Add matches from one pair of arrays, returning whether they were added in rating order
+     */
+    private static boolean collect(Movie[] rated, Movie[] dated, RecommendationQuery query, List<Movie> result) {
+        int ratingEnd = ratingBelow(rated, query.getMinRating());
+        int yearStart = yearAtOrBelow(dated, query.getMaxYear());
+        int yearEnd = query.getMinYear() == Integer.MIN_VALUE ? dated.length
+                : yearAtOrBelow(dated, query.getMinYear() - 1);
+
+        if (ratingEnd <= yearEnd - yearStart) {
+            for (int i = 0; i < ratingEnd; i++) {
+                int year = rated[i].getYear();
+                if (year >= query.getMinYear() && year <= query.getMaxYear()) {
+                    result.add(rated[i]);
+                }
+            }
+            return true;
+        }
+        for (int i = yearStart; i < yearEnd; i++) {
+            if (dated[i].getRating() >= query.getMinRating()) {
+                result.add(dated[i]);
+            }
+        }
+        return false;
+    }
+
+    // First index whose rating is below min, in an array sorted by rating descending
+    private static int ratingBelow(Movie[] rated, double min) {
+        int low = 0;
+        int high = rated.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rated[mid].getRating() >= min) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First index whose year is at most max, in an array sorted by year descending
+    private static int yearAtOrBelow(Movie[] dated, int max) {
+        int low = 0;
+        int high = dated.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dated[mid].getYear() > max) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background watcher that reloads movies.csv when it changes. The file is polled for a
+ * new size or modification time; once it has stayed the same for one poll (so a file
+ * still being written is not picked up) it is re-parsed, the catalogue indexes are
+ * rebuilt on this thread, and the new snapshot is published with one reference swap.
+ * Requests that already read the old snapshot finish against it.
+ */
+public class CatalogueWatcher {
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 2000;
+
+    private static final LatencyHistogram REBUILD_LATENCY = Metrics.histogram("catalogue.rebuild.ns");
+    private static final LatencyHistogram SWAP_LATENCY = Metrics.histogram("catalogue.swap.ns");
+    private static final LongAdder RELOADS = Metrics.counter("catalogue.reloads");
+
+    private final AtomicReference<Catalogue> catalogue;
+    private final File file;
+    private final long pollIntervalMillis;
+    private final Thread worker;
+    private volatile boolean running;
+
+    private long loadedLength;
+    private long loadedModified;
+    private long seenLength;
+    private long seenModified;
+
+    public CatalogueWatcher(AtomicReference<Catalogue> catalogue, String path, long pollIntervalMillis) {
+        this.catalogue = catalogue;
+        this.file = new File(path);
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.loadedLength = file.length();
+        this.loadedModified = file.lastModified();
+        this.seenLength = loadedLength;
+        this.seenModified = loadedModified;
+        this.running = true;
+        this.worker = new Thread(this::run, "catalogue-watcher");
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Check the file once and reload it if it changed and is no longer being written
+     */
+    public void poll() {
+        long length = file.length();
+        long modified = file.lastModified();
+
+        boolean changed = length != loadedLength || modified != loadedModified;
+        boolean stable = length == seenLength && modified == seenModified;
+        seenLength = length;
+        seenModified = modified;
+
+        // The stamp only advances once a snapshot is swapped in, so a file that failed to
+        // load is parsed again on the next poll even if the fix keeps its size and time
+        if (changed && stable && reload()) {
+            loadedLength = length;
+            loadedModified = modified;
+        }
+    }
+
+    /**
+     * Parse the file and publish a new snapshot, false if nothing could be loaded
+     */
+    private boolean reload() {
+        long rebuildStart = System.nanoTime();
+        Map<String, Movie> movies = FileManager.loadMovies(file.toPath());
+        if (movies.isEmpty()) {
+            System.out.println("Movie file reload skipped: no movies parsed");
+            return false;
+        }
+        Catalogue next = Catalogue.build(catalogue.get().getVersion() + 1, movies);
+        long rebuild = System.nanoTime() - rebuildStart;
+
+        long swapStart = System.nanoTime();
+        catalogue.set(next);
+        long swap = System.nanoTime() - swapStart;
+
+        REBUILD_LATENCY.record(rebuild);
+        SWAP_LATENCY.record(swap);
+        RELOADS.increment();
+        System.out.printf("%nMovie catalogue reloaded: %d movies (version %d), rebuild %.1f ms, swap %d ns%n",
+                next.size(), next.getVersion(), rebuild / 1e6, swap);
+        return true;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(pollIntervalMillis);
+                poll();
+            } catch (InterruptedException e) {
+                // stop() interrupts the sleep
+            } catch (RuntimeException e) {
+                System.out.println("Error reloading movie file: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.*;
+
+/**
+ * Diversity re-ranker, reorders a ranked candidate pool with maximal marginal relevance
+ * and an optional per-genre cap so one genre cannot fill the whole result list
+ */
+public class DiversityReranker {
+    public static final double DEFAULT_LAMBDA = 0.7;
+
+    private double lambda;
+    private int maxPerGenre;
+
+    /**
+     * @param lambda      weight of relevance against diversity, between 0 and 1 (1 keeps the original order)
+     * @param maxPerGenre maximum movies per genre in the result, 0 or less for no cap
+     */
+    public DiversityReranker(double lambda, int maxPerGenre) {
+        this.lambda = Math.max(0.0, Math.min(1.0, lambda));
+        this.maxPerGenre = maxPerGenre;
+    }
+
+    public double getLambda() {
+        return lambda;
+    }
+
+    public int getMaxPerGenre() {
+        return maxPerGenre;
+    }
+
+    /**
+     * Pick topN movies from a pool that is already ranked by the strategy (best first).
+     * Relevance is taken from the position in the pool, similarity is 1 for movies sharing
+     * a genre with an already selected movie and 0 otherwise. Runs in O(pool size * topN).
+     */
+    public List<Movie> rerank(List<Movie> pool, int topN) {
+        int n = pool.size();
+        int count = Math.min(topN, n);
+        List<Movie> result = new ArrayList<>(count);
+        if (count <= 0) {
+            return result;
+        }
+
+        boolean[] taken = new boolean[n];
+        Map<String, Integer> selectedGenres = new HashMap<>();
+
+        while (result.size() < count) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+
+            for (int i = 0; i < n; i++) {
+                if (taken[i]) continue;
+
+                Integer genreCount = selectedGenres.get(pool.get(i).getGenre());
+                if (maxPerGenre > 0 && genreCount != null && genreCount >= maxPerGenre) continue;
+
+                double relevance = 1.0 - (double) i / n;
+                double similarity = genreCount != null ? 1.0 : 0.0;
+                double score = lambda * relevance - (1.0 - lambda) * similarity;
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+
+            if (best < 0) {
+                // Every remaining genre is capped, fill up in original order
+                for (int i = 0; i < n && result.size() < count; i++) {
+                    if (!taken[i]) {
+                        taken[i] = true;
+                        result.add(pool.get(i));
+                    }
+                }
+                break;
+            }
+
+            taken[best] = true;
+            Movie movie = pool.get(best);
+            result.add(movie);
+            selectedGenres.merge(movie.getGenre(), 1, Integer::sum);
+        }
+
+        return result;
+    }
+}
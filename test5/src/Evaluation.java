@@ -0,0 +1,313 @@
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline evaluation of every recommendation strategy against watch history.
+ * Each user's dated history is split by time: the later entries become the test set
+ * and the rest is the profile the strategies see. Users are streamed from the users
+ * file through a bounded queue to a pool of workers, so memory stays flat however many
+ * users the file holds. Reports precision@k, recall@k and NDCG@k with latency
+ * percentiles and throughput.
+ *
+ * Run from the test5 directory with: java Evaluation [users file]
+ * Options: -Deval.k=10 -Deval.threads=N -Deval.testFraction=0.2
+ *          -Deval.cutoff=yyyy-MM-dd -Deval.als=true
+ */
+public class Evaluation {
+    public static final int DEFAULT_K = 10;
+    public static final double DEFAULT_TEST_FRACTION = 0.2;
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int PROGRESS_INTERVAL = 100_000;
+    private static final User END = new User("", "");
+
+    private final AtomicReference<Catalogue> catalogue;
+    private final int k;
+    private final int threads;
+    private final double testFraction;
+    private final int cutoffDay;
+    private final Map<String, StrategyResult> results;
+    private final LongAdder skippedUsers;
+    private AlsModel alsModel;
+    private long wallNanos;
+
+    /**
+     * @param cutoff test set is every entry on or after this date, null to hold out
+     *               the latest testFraction of each user's dated entries instead
+     */
+    public Evaluation(Map<String, Movie> movies, int k, int threads, double testFraction, LocalDate cutoff) {
+        this.catalogue = new AtomicReference<>(Catalogue.build(1, movies));
+        this.k = k;
+        this.threads = threads;
+        this.testFraction = testFraction;
+        this.cutoffDay = cutoff != null ? (int) cutoff.toEpochDay() : History.NO_DATE;
+        this.results = new LinkedHashMap<>();
+        this.skippedUsers = new LongAdder();
+    }
+
+    public static void main(String[] args) {
+        Path usersFile = Paths.get(args.length > 0 ? args[0] : FileManager.USER_FILE);
+        String cutoff = System.getProperty("eval.cutoff");
+
+        Evaluation evaluation = new Evaluation(FileManager.loadMovies(),
+                Integer.getInteger("eval.k", DEFAULT_K),
+                Integer.getInteger("eval.threads", Runtime.getRuntime().availableProcessors()),
+                Double.parseDouble(System.getProperty("eval.testFraction", String.valueOf(DEFAULT_TEST_FRACTION))),
+                cutoff != null ? LocalDate.parse(cutoff) : null);
+        if (Boolean.getBoolean("eval.als")) {
+            evaluation.trainAls(usersFile);
+        }
+        evaluation.run(usersFile);
+        evaluation.printReport();
+    }
+
+    /**
+     * Train an ALS model on the training side of every user, so the als strategy
+     * never sees the held-out entries. The trainer keeps all interactions in memory.
+     */
+    public void trainAls(Path usersFile) {
+        AlsTrainer trainer = new AlsTrainer();
+        FileManager.forEachUser(usersFile, user -> {
+            Split split = split(user);
+            if (split != null) {
+                trainer.addUser(split.train);
+            }
+        });
+        alsModel = trainer.train(threads);
+    }
+
+    /**
+     * Stream every user in the file through all strategies
+     */
+    public void run(Path usersFile) {
+        RecommendationEngine[] engines = createEngines();
+        BlockingQueue<User> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> evaluateUsers(queue, engines));
+        }
+
+        long start = System.nanoTime();
+        long[] read = {0};
+        try {
+            FileManager.forEachUser(usersFile, user -> {
+                put(queue, user);
+                if (++read[0] % PROGRESS_INTERVAL == 0) {
+                    System.out.printf("Evaluated %d users...%n", read[0]);
+                }
+            });
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                put(queue, END);
+            }
+            workers.shutdown();
+        }
+
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wallNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Print metrics for each strategy
+     */
+    public void printReport() {
+        long users = results.isEmpty() ? 0 : results.values().iterator().next().users.sum();
+        String split = cutoffDay != History.NO_DATE ? "cutoff " + LocalDate.ofEpochDay(cutoffDay)
+                : String.format("latest %.0f%% per user", testFraction * 100);
+        System.out.printf("%n=== Offline evaluation: %d users, k=%d, %d threads, %s ===%n", users, k, threads, split);
+        System.out.printf("%-8s %12s %10s %8s %9s %9s %9s %9s%n", "strategy",
+                "precision@" + k, "recall@" + k, "ndcg@" + k, "p50(us)", "p99(us)", "max(us)", "recs/s");
+        for (Map.Entry<String, StrategyResult> entry : results.entrySet()) {
+            StrategyResult result = entry.getValue();
+            LatencyHistogram latency = result.latency;
+            double busySeconds = latency.getMean() * latency.getCount() / 1e9;
+            System.out.printf("%-8s %12.4f %10.4f %8.4f %9.1f %9.1f %9.1f %9.0f%n", entry.getKey(),
+                    result.getPrecision(), result.getRecall(), result.getNdcg(),
+                    latency.getPercentile(50) / 1e3, latency.getPercentile(99) / 1e3, latency.getMax() / 1e3,
+                    busySeconds > 0 ? latency.getCount() / busySeconds : 0);
+        }
+        System.out.printf("Skipped %d users without dated history to hold out%n", skippedUsers.sum());
+        System.out.printf("Throughput: %.0f users/s, %.0f recommendations/s over %.2f s%n",
+                users / (wallNanos / 1e9), users * results.size() / (wallNanos / 1e9), wallNanos / 1e9);
+    }
+
+    /**
+     * Metrics for one strategy, summed over users
+     */
+    public StrategyResult getResult(String strategy) {
+        return results.get(strategy);
+    }
+
+    private RecommendationEngine[] createEngines() {
+        List<RecommendationEngine> engines = new ArrayList<>();
+        results.clear();
+        // One engine per strategy, the strategy setting is not meant to change between threads
+        for (String strategy : new RecommendationEngine(catalogue).getAvailableStrategies()) {
+            if (strategy.equals("als") && alsModel == null) {
+                continue;
+            }
+            RecommendationEngine engine = new RecommendationEngine(catalogue);
+            engine.setCurrentStrategy(strategy);
+            engine.setAlsModel(alsModel);
+            engines.add(engine);
+            results.put(strategy, new StrategyResult());
+        }
+        return engines.toArray(new RecommendationEngine[0]);
+    }
+
+    private void evaluateUsers(BlockingQueue<User> queue, RecommendationEngine[] engines) {
+        StrategyResult[] strategyResults = results.values().toArray(new StrategyResult[0]);
+        try {
+            User user;
+            while ((user = queue.take()) != END) {
+                try {
+                    Split split = split(user);
+                    if (split == null) {
+                        skippedUsers.increment();
+                        continue;
+                    }
+                    for (int i = 0; i < engines.length; i++) {
+                        long start = System.nanoTime();
+                        List<Movie> recommendations = engines[i].getRecommendations(split.train, k);
+                        strategyResults[i].latency.record(System.nanoTime() - start);
+                        score(recommendations, split.test, strategyResults[i]);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Error evaluating user " + user.getUsername() + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void score(List<Movie> recommendations, Set<String> test, StrategyResult result) {
+        int hits = 0;
+        double dcg = 0;
+        for (int i = 0; i < recommendations.size(); i++) {
+            if (test.contains(recommendations.get(i).getId())) {
+                hits++;
+                dcg += 1 / log2(i + 2);
+            }
+        }
+        double idcg = 0;
+        for (int i = 0; i < Math.min(k, test.size()); i++) {
+            idcg += 1 / log2(i + 2);
+        }
+
+        result.precision.add((double) hits / k);
+        result.recall.add((double) hits / test.size());
+        result.ndcg.add(dcg / idcg);
+        result.users.increment();
+    }
+
+    /**
+     * Split a user's history by date, null if nothing in the catalogue can be held out.
+     * Undated entries always stay in the training side. The watchlist is left out of the
+     * profile because strategies never recommend watchlisted movies, which would hide
+     * any test entry also on the watchlist.
+     */
+    private Split split(User user) {
+        Catalogue movies = catalogue.get();
+        long[] dated = new long[user.getHistory().size()];
+        List<String> undated = new ArrayList<>();
+        int[] count = {0};
+        user.getHistory().forEach((movieOrdinal, epochDay) -> {
+            if (epochDay == History.NO_DATE) {
+                undated.add(MovieIds.id(movieOrdinal));
+            } else {
+                // Day in the high half so sorting orders by date, then by movie
+                dated[count[0]++] = ((long) epochDay << 32) | movieOrdinal;
+            }
+        });
+        Arrays.sort(dated, 0, count[0]);
+
+        int testStart;
+        if (cutoffDay != History.NO_DATE) {
+            testStart = 0;
+            while (testStart < count[0] && (int) (dated[testStart] >> 32) < cutoffDay) {
+                testStart++;
+            }
+        } else {
+            testStart = count[0] - (int) Math.ceil(count[0] * testFraction);
+        }
+
+        User train = new User(user.getUsername(), user.getPassword());
+        for (String movieId : undated) {
+            train.getHistory().addMovie(movieId);
+        }
+        Set<String> test = new HashSet<>();
+        for (int i = 0; i < count[0]; i++) {
+            String movieId = MovieIds.id((int) dated[i]);
+            if (i < testStart) {
+                train.getHistory().addMovie(movieId, LocalDate.ofEpochDay(dated[i] >> 32));
+            } else if (movies.containsMovie(movieId)) {
+                test.add(movieId);
+            }
+        }
+        return test.isEmpty() ? null : new Split(train, test);
+    }
+
+    private static void put(BlockingQueue<User> queue, User user) {
+        try {
+            queue.put(user);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing users", e);
+        }
+    }
+
+    private static double log2(int value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private static class Split {
+        private final User train;
+        private final Set<String> test;
+
+        Split(User train, Set<String> test) {
+            this.train = train;
+            this.test = test;
+        }
+    }
+
+    /**
+     * Running totals for one strategy, updated concurrently by the workers
+     */
+    public static class StrategyResult {
+        private final DoubleAdder precision = new DoubleAdder();
+        private final DoubleAdder recall = new DoubleAdder();
+        private final DoubleAdder ndcg = new DoubleAdder();
+        private final LongAdder users = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public long getUsers() {
+            return users.sum();
+        }
+
+        public double getPrecision() {
+            return precision.sum() / Math.max(1, users.sum());
+        }
+
+        public double getRecall() {
+            return recall.sum() / Math.max(1, users.sum());
+        }
+
+        public double getNdcg() {
+            return ndcg.sum() / Math.max(1, users.sum());
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+}
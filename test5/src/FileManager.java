@@ -1,20 +1,46 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 文件管理类，负责读取和写入CSV文件
  */
 public class FileManager {
-    private static final String MOVIE_FILE = "data/movies.csv";
-    private static final String USER_FILE = "data/users.csv";
+    public static final String MOVIE_FILE = "data/movies.csv";
+    public static final String USER_FILE = "data/users.csv";
+    private static final String USER_INDEX_FILE = "data/users.idx";
+    private static final String ALS_MODEL_FILE = "data/als.bin";
+
+    // 读写耗时与错误统计
+    private static final LatencyHistogram MOVIE_LOAD_LATENCY = Metrics.histogram("file.movies.load.ns");
+    private static final LatencyHistogram USER_LOAD_LATENCY = Metrics.histogram("file.users.load.ns");
+    private static final LatencyHistogram USER_SAVE_LATENCY = Metrics.histogram("file.users.save.ns");
+    private static final LongAdder MOVIE_PARSE_ERRORS = Metrics.counter("file.movies.parseErrors");
+    private static final LongAdder USER_PARSE_ERRORS = Metrics.counter("file.users.parseErrors");
+    private static final LongAdder USER_SAVE_ERRORS = Metrics.counter("file.users.saveErrors");
+    private static final LongAdder BYTES_WRITTEN = Metrics.counter("file.users.bytesWritten");
 
     /**
      * 从CSV文件加载电影数据
      */
     public static Map<String, Movie> loadMovies() {
+        return loadMovies(Paths.get(MOVIE_FILE));
+    }
+
+    /**
+     * 从指定的CSV文件加载电影数据
+     */
+    public static Map<String, Movie> loadMovies(Path file) {
+        long start = System.nanoTime();
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
         Map<String, Movie> movies = new HashMap<>();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(MOVIE_FILE))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
             String line;
             reader.readLine(); // 跳过标题行
 
@@ -31,22 +57,35 @@ public class FileManager {
                         movies.put(id, new Movie(id, title, genre, year, rating));
                     }
                 } catch (Exception e) {
+                    MOVIE_PARSE_ERRORS.increment();
                     System.out.println("Error parsing movie line: " + line);
                 }
             }
         } catch (FileNotFoundException e) {
-            System.out.println("Movie file not found: " + MOVIE_FILE);
+            System.out.println("Movie file not found: " + file);
         } catch (IOException e) {
             System.out.println("Error reading movie file: " + e.getMessage());
         }
 
+        MOVIE_LOAD_LATENCY.record(System.nanoTime() - start);
+        event.finish(FileOperationEvent.LOAD_MOVIES, file, movies.size(), 0);
         return movies;
     }
 
+    /**
+     * 创建电影文件监视器，文件变化时在后台重新加载并替换电影目录
+     */
+    public static CatalogueWatcher watchMovies(AtomicReference<Catalogue> catalogue, long pollIntervalMillis) {
+        return new CatalogueWatcher(catalogue, MOVIE_FILE, pollIntervalMillis);
+    }
+
     /**
      * 从CSV文件加载用户数据
      */
     public static Map<String, User> loadUsers() {
+        long start = System.nanoTime();
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
         Map<String, User> users = new HashMap<>();
 
         try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE))) {
@@ -55,36 +94,12 @@ public class FileManager {
 
             while ((line = reader.readLine()) != null) {
                 try {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 4) {
-                        String username = parts[0].trim();
-                        String password = parts[1].trim();
-
-                        // 解析观看列表
-                        Watchlist watchlist = new Watchlist();
-                        if (!parts[2].trim().isEmpty()) {
-                            String[] watchlistItems = parts[2].split(";");
-                            for (String item : watchlistItems) {
-                                if (!item.trim().isEmpty()) {
-                                    watchlist.addMovie(item.trim());
-                                }
-                            }
-                        }
-
-                        // 解析观看历史
-                        History history = new History();
-                        if (!parts[3].trim().isEmpty()) {
-                            String[] historyItems = parts[3].split(";");
-                            for (String item : historyItems) {
-                                if (!item.trim().isEmpty()) {
-                                    history.addMovie(item.trim());
-                                }
-                            }
-                        }
-
-                        users.put(username, new User(username, password, watchlist, history));
+                    User user = parseUser(line);
+                    if (user != null) {
+                        users.put(user.getUsername(), user);
                     }
                 } catch (Exception e) {
+                    USER_PARSE_ERRORS.increment();
                     System.out.println("Error parsing user line: " + line);
                 }
             }
@@ -95,44 +110,257 @@ public class FileManager {
             System.out.println("Error reading user file: " + e.getMessage());
         }
 
+        USER_LOAD_LATENCY.record(System.nanoTime() - start);
+        event.finish(FileOperationEvent.LOAD_USERS, USER_FILE, users.size(), 0);
         return users;
     }
 
     /**
-     * 保存用户数据到CSV文件
+     * 解析一行用户记录，字段不足时返回null
      */
-    public static void saveUsers(Map<String, User> users) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(USER_FILE))) {
-            writer.println("Username,Password,Watchlist,History");
+    public static User parseUser(String line) {
+        String[] parts = line.split(",", -1);
+        if (parts.length < 4) {
+            return null;
+        }
+
+        String username = parts[0].trim();
+        String password = parts[1].trim();
 
-            for (User user : users.values()) {
-                // 构建watchlist字符串
-                String watchlistStr = "";
-                List<String> watchlistIds = user.getWatchlist().getMovieIds();
-                for (int i = 0; i < watchlistIds.size(); i++) {
-                    if (i > 0) watchlistStr += ";";
-                    watchlistStr += watchlistIds.get(i);
+        // 解析观看列表
+        Watchlist watchlist = new Watchlist();
+        if (!parts[2].trim().isEmpty()) {
+            String[] watchlistItems = parts[2].split(";");
+            for (String item : watchlistItems) {
+                if (!item.trim().isEmpty()) {
+                    watchlist.addMovie(item.trim());
                 }
+            }
+        }
+
+        // 解析观看历史
+        History history = new History();
+        if (!parts[3].trim().isEmpty()) {
+            String[] historyItems = parts[3].split(";");
+            for (String item : historyItems) {
+                if (!item.trim().isEmpty()) {
+                    history.addMovie(item.trim());
+                }
+            }
+        }
+        history.compact();
+
+        return new User(username, password, watchlist, history);
+    }
+
+    /**
+     * 逐个读取所有用户，不把整个文件放进内存
+     */
+    public static void forEachUser(Consumer<User> consumer) {
+        forEachUser(Paths.get(USER_FILE), consumer);
+    }
+
+    /**
+     * 逐个读取指定用户文件中的所有用户
+     */
+    public static void forEachUser(Path file, Consumer<User> consumer) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            reader.readLine(); // 跳过标题行
+
+            while ((line = reader.readLine()) != null) {
+                User user;
+                try {
+                    user = parseUser(line);
+                } catch (Exception e) {
+                    USER_PARSE_ERRORS.increment();
+                    System.out.println("Error parsing user line: " + line);
+                    continue;
+                }
+                if (user != null) {
+                    consumer.accept(user);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading user file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 加载已训练的ALS模型，文件不存在时返回null
+     */
+    public static AlsModel loadAlsModel() {
+        Path file = Paths.get(ALS_MODEL_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        AlsModel model = null;
+        try {
+            model = AlsModel.load(file);
+            return model;
+        } catch (IOException e) {
+            System.out.println("Error loading ALS model: " + e.getMessage());
+            return null;
+        } finally {
+            event.finish(FileOperationEvent.LOAD_ALS_MODEL, file, model != null ? model.getItemCount() : 0, 0,
+                    model != null);
+        }
+    }
+
+    /**
+     * 用户文件在ALS模型保存之后又被修改过，说明模型已过期
+     */
+    public static boolean isAlsModelStale() {
+        try {
+            Path model = Paths.get(ALS_MODEL_FILE);
+            return !Files.exists(model) || Files.getLastModifiedTime(Paths.get(USER_FILE))
+                    .compareTo(Files.getLastModifiedTime(model)) > 0;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 保存ALS模型，重启后无需重新训练
+     */
+    public static void saveAlsModel(AlsModel model) {
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        Path file = Paths.get(ALS_MODEL_FILE);
+        long bytes = 0;
+        boolean success = false;
+        try {
+            model.save(file);
+            bytes = Files.size(file);
+            success = true;
+        } catch (IOException e) {
+            System.out.println("Error saving ALS model: " + e.getMessage());
+        } finally {
+            event.finish(FileOperationEvent.SAVE_ALS_MODEL, file, model.getItemCount(), bytes, success);
+        }
+    }
+
+    /**
+     * 打开按需加载的用户存储，用户文件不存在时先创建默认用户
+     */
+    public static UserStore openUserStore(int cacheSize) throws IOException {
+        if (!Files.exists(Paths.get(USER_FILE))) {
+            System.out.println("User file not found: " + USER_FILE);
+            if (!createDefaultUsers(new HashMap<>())) {
+                throw new IOException("Cannot create user file: " + USER_FILE);
+            }
+        }
+        return new UserStore(Paths.get(USER_FILE), Paths.get(USER_INDEX_FILE), cacheSize);
+    }
 
-                // 构建history字符串
-                String historyStr = "";
-                List<String> historyIds = user.getHistory().getMovieIds();
-                for (int i = 0; i < historyIds.size(); i++) {
-                    if (i > 0) historyStr += ";";
-                    historyStr += historyIds.get(i);
+    /**
+     * 保存用户数据到CSV文件，先写临时文件再原子替换，写到一半崩溃也不会破坏原文件。
+     * 保存失败返回false，原文件保持不变，调用方可以稍后重试
+     */
+    public static synchronized boolean saveUsers(Map<String, User> users) {
+        long start = System.nanoTime();
+        long bytes;
+        try {
+            bytes = writeUsers(users.values(), Paths.get(USER_FILE), Paths.get(USER_INDEX_FILE));
+        } catch (IOException e) {
+            USER_SAVE_ERRORS.increment();
+            System.out.println("Error saving user data: " + e.getMessage());
+            return false;
+        }
+        // 原子替换成功后才计入写入字节数
+        BYTES_WRITTEN.add(bytes);
+        USER_SAVE_LATENCY.record(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * 将用户写入目标文件并更新索引，返回写入的字节数
+     */
+    static synchronized long writeUsers(Collection<User> users, Path target, Path indexFile) throws IOException {
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        long bytes = 0;
+        boolean success = false;
+        try (UserFileWriter writer = new UserFileWriter(target)) {
+            for (User user : users) {
+                writer.writeUser(user);
+            }
+            bytes = writer.commit(indexFile);
+            success = true;
+            return bytes;
+        } finally {
+            // 失败的保存也提交事件，bytes为0
+            event.finish(FileOperationEvent.SAVE_USERS, target, users.size(), bytes, success);
+        }
+    }
+
+    /**
+     * 只重写有改动的用户：逐行复制原文件，遇到改动的用户写入内存中的新数据，新用户追加到末尾
+     */
+    public static boolean mergeUsers(Map<String, User> changedUsers) {
+        return mergeUsers(changedUsers, Paths.get(USER_FILE), Paths.get(USER_INDEX_FILE));
+    }
+
+    /**
+     * 将改动合并到指定的用户文件，并重建其索引
+     */
+    public static synchronized boolean mergeUsers(Map<String, User> changedUsers, Path usersFile, Path indexFile) {
+        long start = System.nanoTime();
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        Set<String> written = new HashSet<>();
+        long bytes = 0;
+        boolean success = false;
+
+        try (UserFileWriter writer = new UserFileWriter(usersFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(usersFile, StandardCharsets.UTF_8)) {
+                String line;
+                reader.readLine(); // 跳过标题行
+
+                while ((line = reader.readLine()) != null) {
+                    int comma = line.indexOf(',');
+                    if (comma < 0) continue;
+                    String username = line.substring(0, comma).trim();
+
+                    User changed = changedUsers.get(username);
+                    if (changed != null) {
+                        writer.writeUser(changed);
+                        written.add(username);
+                    } else {
+                        writer.writeLine(username, line);
+                    }
                 }
+            }
 
-                writer.println(user.getUsername() + "," + user.getPassword() + "," + watchlistStr + "," + historyStr);
+            for (User user : changedUsers.values()) {
+                if (!written.contains(user.getUsername())) {
+                    writer.writeUser(user);
+                }
             }
+
+            bytes = writer.commit(indexFile);
+            success = true;
         } catch (IOException e) {
+            USER_SAVE_ERRORS.increment();
             System.out.println("Error saving user data: " + e.getMessage());
+            return false;
+        } finally {
+            // 失败的合并也提交事件，bytes为0
+            event.finish(FileOperationEvent.MERGE_USERS, usersFile, changedUsers.size(), bytes, success);
         }
+
+        // 原子替换成功后才计入写入字节数
+        BYTES_WRITTEN.add(bytes);
+        USER_SAVE_LATENCY.record(System.nanoTime() - start);
+        return true;
     }
 
     /**
      * 创建默认用户（如果用户文件不存在）
      */
-    private static void createDefaultUsers(Map<String, User> users) {
+    private static boolean createDefaultUsers(Map<String, User> users) {
         String[][] defaultUsers = {
                 {"bob", "bob123", "", ""},
                 {"eric", "eric123", "", ""},
@@ -145,6 +373,6 @@ public class FileManager {
             users.put(userData[0], new User(userData[0], userData[1]));
         }
 
-        saveUsers(users);
+        return saveUsers(users);
     }
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+import jdk.jfr.*;
+
+/**
+ * JFR event for loading or saving one of the data files
+ */
+@Name("moviesystem.FileOperation")
+@Label("File Operation")
+@Category({"Movie System", "File"})
+@Description("Load or save of movies, users, the user index or the ALS model")
+@StackTrace(false)
+public class FileOperationEvent extends Event {
+    public static final String LOAD_MOVIES = "loadMovies";
+    public static final String LOAD_USERS = "loadUsers";
+    public static final String LOAD_USER = "loadUser";
+    public static final String SAVE_USERS = "saveUsers";
+    public static final String MERGE_USERS = "mergeUsers";
+    public static final String BUILD_INDEX = "buildIndex";
+    public static final String LOAD_ALS_MODEL = "loadAlsModel";
+    public static final String SAVE_ALS_MODEL = "saveAlsModel";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Records")
+    long records;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+
+    /**
+     * End the event and commit it with its fields if recording is enabled
+     */
+    void finish(String operation, Object path, long records, long bytes) {
+        finish(operation, path, records, bytes, true);
+    }
+
+    /**
+     * End the event of an operation that may have failed, failed ones are recorded too
+     */
+    void finish(String operation, Object path, long records, long bytes, boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.path = String.valueOf(path);
+            this.records = records;
+            this.bytes = bytes;
+            this.success = success;
+            commit();
+        }
+    }
+}
@@ -1,28 +1,358 @@
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 观看历史类，管理用户已观看的电影
+ * 紧凑存储：按电影序号排序，序号差值与观看日期（相对2000-01-01的天数）以varint编码在一个byte[]中；
+ * 新增记录先放入未排序的尾部缓冲，攒够一批再合并，使追加的均摊代价为常数；
+ * 去重用一个按需建立的序号哈希表，compact()后释放，只读的历史不占这部分内存
  */
 public class History {
-    private List<String> movieIds;
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    private static final int DAY_BASE = (int) LocalDate.of(2000, 1, 1).toEpochDay();
+    private static final int MIN_TAIL = 16;
+    private static final byte[] EMPTY = new byte[0];
+    private static final LongAdder BAD_DATES = Metrics.counter("history.badDates");
+
+    private byte[] data;
+    private int dataLength;
+    private int blockSize;
+    private int[] tailOrdinals;
+    private int[] tailDays;
+    private int tailSize;
+    // 开放寻址哈希表，存序号+1，0表示空位；null表示尚未建立
+    private int[] ordinalSet;
+    private int ordinalSetSize;
+
+    /**
+     * 遍历历史记录的回调，epochDay为NO_DATE表示没有日期
+     */
+    public interface EntryVisitor {
+        void visit(int movieOrdinal, int epochDay);
+    }
 
     public History() {
-        this.movieIds = new ArrayList<>();
+        this.data = EMPTY;
+    }
+
+    /**
+     * 添加记录，格式为"M001"或"M001@2025-07-12"；日期格式错误时保留记录但不带日期
+     */
+    public synchronized boolean addMovie(String entry) {
+        int at = entry.indexOf('@');
+        if (at < 0) {
+            return add(MovieIds.ordinal(entry), NO_DATE);
+        }
+        int epochDay;
+        try {
+            epochDay = (int) LocalDate.parse(entry.substring(at + 1)).toEpochDay();
+        } catch (DateTimeParseException e) {
+            // 一条坏日期不应导致整个用户无法加载
+            BAD_DATES.increment();
+            System.out.println("Invalid watch date, kept without date: " + entry);
+            epochDay = NO_DATE;
+        }
+        return add(MovieIds.ordinal(entry.substring(0, at)), epochDay);
+    }
+
+    /**
+     * 添加记录并记下观看日期
+     */
+    public synchronized boolean addMovie(String movieId, LocalDate date) {
+        return add(MovieIds.ordinal(movieId), date != null ? (int) date.toEpochDay() : NO_DATE);
+    }
+
+    public synchronized boolean contains(String movieId) {
+        // A lookup must not intern ids, an unknown one cannot be in any history
+        int ordinal = MovieIds.find(movieId);
+        return ordinal >= 0 && containsOrdinal(ordinal);
+    }
+
+    /**
+     * 返回已观看的电影ID（不含日期）
+     */
+    public synchronized List<String> getMovieIds() {
+        List<String> ids = new ArrayList<>(size());
+        forEach((ordinal, epochDay) -> ids.add(MovieIds.id(ordinal)));
+        return ids;
+    }
+
+    /**
+     * 按文件格式追加所有记录，用分号分隔，有日期的记录带"@yyyy-MM-dd"
+     */
+    public synchronized void appendTo(StringBuilder text) {
+        boolean[] first = {true};
+        forEach((ordinal, epochDay) -> {
+            if (!first[0]) text.append(';');
+            first[0] = false;
+            text.append(MovieIds.id(ordinal));
+            if (epochDay != NO_DATE) {
+                text.append('@').append(LocalDate.ofEpochDay(epochDay));
+            }
+        });
+    }
+
+    /**
+     * 依次访问每条记录，不创建中间对象
+     */
+    public synchronized void forEach(EntryVisitor visitor) {
+        int pos = 0;
+        int ordinal = 0;
+        for (int i = 0; i < blockSize; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            int dayCode = 0;
+            shift = 0;
+            do {
+                b = data[pos++];
+                dayCode |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            ordinal += delta;
+            visitor.visit(ordinal, decodeDay(dayCode));
+        }
+
+        for (int i = 0; i < tailSize; i++) {
+            visitor.visit(tailOrdinals[i], tailDays[i]);
+        }
+    }
+
+    public synchronized int size() {
+        return blockSize + tailSize;
+    }
+
+    public synchronized boolean isEmpty() {
+        return blockSize + tailSize == 0;
+    }
+
+    /**
+     * 合并尾部缓冲并释放多余空间，加载完成后调用以减少内存占用
+     */
+    public synchronized void compact() {
+        if (tailSize > 0) {
+            merge();
+        }
+        tailOrdinals = null;
+        tailDays = null;
+        ordinalSet = null;
+        ordinalSetSize = 0;
+        if (data.length != dataLength) {
+            data = Arrays.copyOf(data, dataLength);
+        }
+    }
+
+    private boolean add(int ordinal, int epochDay) {
+        if (ordinalSet == null) {
+            buildOrdinalSet();
+        }
+        if (!insertOrdinal(ordinal)) {
+            return false;
+        }
+
+        if (tailOrdinals == null) {
+            tailOrdinals = new int[4];
+            tailDays = new int[4];
+        } else if (tailSize == tailOrdinals.length) {
+            tailOrdinals = Arrays.copyOf(tailOrdinals, tailSize * 2);
+            tailDays = Arrays.copyOf(tailDays, tailSize * 2);
+        }
+        tailOrdinals[tailSize] = ordinal;
+        tailDays[tailSize] = epochDay;
+        tailSize++;
+
+        // 合并代价与块大小成正比，每攒blockSize/8条合并一次，均摊为常数
+        if (tailSize >= Math.max(MIN_TAIL, blockSize >> 3)) {
+            merge();
+        }
+        return true;
     }
 
-    public boolean addMovie(String movieId) {
-        if (!movieIds.contains(movieId)) {
-            movieIds.add(movieId);
-            return true;
+    private boolean containsOrdinal(int target) {
+        if (ordinalSet != null) {
+            int key = target + 1;
+            int mask = ordinalSet.length - 1;
+            for (int i = slotOf(key, mask); ordinalSet[i] != 0; i = (i + 1) & mask) {
+                if (ordinalSet[i] == key) return true;
+            }
+            return false;
+        }
+
+        for (int i = 0; i < tailSize; i++) {
+            if (tailOrdinals[i] == target) return true;
+        }
+
+        int pos = 0;
+        int ordinal = 0;
+        for (int i = 0; i < blockSize; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            do {
+                b = data[pos++];
+            } while (b < 0);
+
+            ordinal += delta;
+            if (ordinal >= target) {
+                return ordinal == target;
+            }
         }
         return false;
     }
 
-    public List<String> getMovieIds() {
-        return new ArrayList<>(movieIds);
+    /**
+     * 由已有记录建立去重哈希表，只在第一次追加时做一次
+     */
+    private void buildOrdinalSet() {
+        ordinalSet = new int[Math.max(MIN_TAIL, Integer.highestOneBit(Math.max(1, size()) * 4 - 1))];
+        ordinalSetSize = 0;
+        forEach((ordinal, epochDay) -> insertOrdinal(ordinal));
+    }
+
+    // 序号不存在时插入并返回true，负载因子保持在1/2以下
+    private boolean insertOrdinal(int ordinal) {
+        if ((ordinalSetSize + 1) * 2 > ordinalSet.length) {
+            int[] old = ordinalSet;
+            ordinalSet = new int[old.length * 2];
+            int mask = ordinalSet.length - 1;
+            for (int key : old) {
+                if (key != 0) {
+                    int i = slotOf(key, mask);
+                    while (ordinalSet[i] != 0) i = (i + 1) & mask;
+                    ordinalSet[i] = key;
+                }
+            }
+        }
+
+        int key = ordinal + 1;
+        int mask = ordinalSet.length - 1;
+        int i = slotOf(key, mask);
+        while (ordinalSet[i] != 0) {
+            if (ordinalSet[i] == key) return false;
+            i = (i + 1) & mask;
+        }
+        ordinalSet[i] = key;
+        ordinalSetSize++;
+        return true;
+    }
+
+    private static int slotOf(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
     }
 
-    public boolean isEmpty() {
-        return movieIds.isEmpty();
+    /**
+     * 将尾部缓冲排序后与已编码的块归并，重新编码
+     */
+    private void merge() {
+        // 尾部很小，直接插入排序
+        for (int i = 1; i < tailSize; i++) {
+            int ordinal = tailOrdinals[i];
+            int day = tailDays[i];
+            int j = i - 1;
+            while (j >= 0 && tailOrdinals[j] > ordinal) {
+                tailOrdinals[j + 1] = tailOrdinals[j];
+                tailDays[j + 1] = tailDays[j];
+                j--;
+            }
+            tailOrdinals[j + 1] = ordinal;
+            tailDays[j + 1] = day;
+        }
+
+        // 解码已有的块，再与尾部两路归并后重新编码
+        int[] blockOrdinals = new int[blockSize];
+        int[] blockDayCodes = new int[blockSize];
+        int pos = 0;
+        int ordinal = 0;
+        for (int i = 0; i < blockSize; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            int dayCode = 0;
+            shift = 0;
+            do {
+                b = data[pos++];
+                dayCode |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            ordinal += delta;
+            blockOrdinals[i] = ordinal;
+            blockDayCodes[i] = dayCode;
+        }
+
+        byte[] out = new byte[dataLength + tailSize * 10];
+        int outPos = 0;
+        int previous = 0;
+        int blockIndex = 0;
+        int tailIndex = 0;
+        while (blockIndex < blockSize || tailIndex < tailSize) {
+            int next;
+            int dayCode;
+            if (tailIndex >= tailSize || (blockIndex < blockSize && blockOrdinals[blockIndex] < tailOrdinals[tailIndex])) {
+                next = blockOrdinals[blockIndex];
+                dayCode = blockDayCodes[blockIndex];
+                blockIndex++;
+            } else {
+                next = tailOrdinals[tailIndex];
+                dayCode = encodeDay(tailDays[tailIndex]);
+                tailIndex++;
+            }
+            outPos = writeVarint(out, outPos, next - previous);
+            outPos = writeVarint(out, outPos, dayCode);
+            previous = next;
+        }
+
+        data = out;
+        dataLength = outPos;
+        blockSize += tailSize;
+        tailSize = 0;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    // 0表示无日期，否则为相对基准日的天数做zigzag编码后加1
+    private static int encodeDay(int epochDay) {
+        if (epochDay == NO_DATE) {
+            return 0;
+        }
+        int offset = epochDay - DAY_BASE;
+        return ((offset << 1) ^ (offset >> 31)) + 1;
+    }
+
+    private static int decodeDay(int dayCode) {
+        if (dayCode == 0) {
+            return NO_DATE;
+        }
+        int zigzag = dayCode - 1;
+        return ((zigzag >>> 1) ^ -(zigzag & 1)) + DAY_BASE;
     }
-}
\ No newline at end of file
+}
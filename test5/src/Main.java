@@ -1,9 +1,49 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
 /**
  * 程序主入口类
+ * 以"--profile"或"--profile=文件"启动时开启JFR记录，程序退出时写入文件
  */
 public class Main {
+    private static final String DEFAULT_PROFILE_FILE = "data/profile.jfr";
+
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--profile")) {
+                startProfiling(Paths.get(DEFAULT_PROFILE_FILE));
+            } else if (arg.startsWith("--profile=")) {
+                startProfiling(Paths.get(arg.substring("--profile=".length())));
+            }
+        }
+
         MovieSystem system = new MovieSystem();
         system.start();
     }
-}
\ No newline at end of file
+
+    /**
+     * 开启JFR记录：默认使用开销较低的"default"配置（可用-Dprofile.settings=profile切换），
+     * 推荐与文件读写的自定义事件全部记录，JVM退出时写入文件
+     */
+    private static void startProfiling(Path file) {
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration(
+                    System.getProperty("profile.settings", "default")));
+            recording.setName("MovieSystem");
+            recording.enable(RecommendationEvent.class).withoutThreshold();
+            recording.enable(RecommendationPhaseEvent.class).withoutThreshold();
+            recording.enable(FileOperationEvent.class).withoutThreshold();
+            recording.setToDisk(true);
+            recording.setDestination(file);
+            recording.setDumpOnExit(true);
+            recording.start();
+            System.out.println("Profiling enabled, recording will be written to " + file + " on exit");
+        } catch (IOException | ParseException | IllegalStateException e) {
+            System.out.println("Error starting profiling: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide metrics registry with lock-free counters and latency histograms.
+ * Durations are recorded in nanoseconds; hot paths should keep the returned
+ * counter or histogram instead of looking it up on every call.
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String MBEAN_NAME = "MovieSystem:type=Metrics";
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static final String HIT_SUFFIX = ".hit";
+    private static final String MISS_SUFFIX = ".miss";
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get or create a counter
+     */
+    public static LongAdder counter(String name) {
+        return INSTANCE.counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Get or create a histogram
+     */
+    public static LatencyHistogram histogram(String name) {
+        return INSTANCE.histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Record a cache lookup, the dump reports the hit rate for each cache name
+     */
+    public static void cacheLookup(String cache, boolean hit) {
+        counter(cache + (hit ? HIT_SUFFIX : MISS_SUFFIX)).increment();
+    }
+
+    /**
+     * Register the JMX MBean, safe to call more than once
+     */
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+            }
+        } catch (Exception e) {
+            System.out.println("Error registering metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getHistogramCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getP50() {
+        return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Long> getP99() {
+        return percentiles(99);
+    }
+
+    @Override
+    public Map<String, Long> getMax() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getMax());
+        }
+        return result;
+    }
+
+    /**
+     * Text dump of every metric, histograms named *.ns are shown in microseconds
+     */
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--- Counters ---\n");
+        Map<String, Long> counterValues = getCounters();
+        for (Map.Entry<String, Long> entry : counterValues.entrySet()) {
+            sb.append(String.format("%-40s %d%n", entry.getKey(), entry.getValue()));
+        }
+
+        for (String name : counterValues.keySet()) {
+            if (name.endsWith(HIT_SUFFIX)) {
+                String cache = name.substring(0, name.length() - HIT_SUFFIX.length());
+                long hits = counterValues.get(name);
+                long misses = counterValues.getOrDefault(cache + MISS_SUFFIX, 0L);
+                double rate = hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses);
+                sb.append(String.format("%-40s %.1f%%%n", cache + ".hitRate", rate));
+            }
+        }
+
+        sb.append("--- Histograms ---\n");
+        for (String name : new TreeSet<>(histograms.keySet())) {
+            LatencyHistogram histogram = histograms.get(name);
+            if (name.endsWith(".ns")) {
+                sb.append(String.format("%-40s count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+                        name.substring(0, name.length() - 3), histogram.getCount(), histogram.getMean() / 1000.0,
+                        histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                        histogram.getMax() / 1000.0));
+            } else {
+                sb.append(String.format("%-40s count=%d mean=%.1f p50=%d p99=%d max=%d%n",
+                        name, histogram.getCount(), histogram.getMean(),
+                        histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    private Map<String, Long> percentiles(double percentile) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getPercentile(percentile));
+        }
+        return result;
+    }
+}
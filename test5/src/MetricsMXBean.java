@@ -0,0 +1,20 @@
+import java.util.Map;
+
+/**
+ * JMX view of the metrics registry, registered as "MovieSystem:type=Metrics"
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getHistogramCounts();
+
+    Map<String, Long> getP50();
+
+    Map<String, Long> getP99();
+
+    Map<String, Long> getMax();
+
+    String dump();
+
+    void reset();
+}
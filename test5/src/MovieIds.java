@@ -0,0 +1,60 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide mapping between movie id strings and dense int ordinals. Ordinals are
+ * handed out on first use and never change, so they stay valid across catalogue reloads
+ * and can be stored in compact per-user structures instead of id strings.
+ */
+public class MovieIds {
+    private static final Map<String, Integer> ORDINALS = new ConcurrentHashMap<>();
+    private static volatile String[] ids = new String[1024];
+    private static int count;
+
+    private MovieIds() {
+    }
+
+    /**
+     * Get the ordinal of a movie id, assigning the next one if the id is new
+     */
+    public static int ordinal(String id) {
+        Integer ordinal = ORDINALS.get(id);
+        if (ordinal != null) {
+            return ordinal;
+        }
+
+        synchronized (MovieIds.class) {
+            ordinal = ORDINALS.get(id);
+            if (ordinal != null) {
+                return ordinal;
+            }
+            String[] current = ids;
+            if (count == current.length) {
+                String[] larger = new String[current.length * 2];
+                System.arraycopy(current, 0, larger, 0, count);
+                current = larger;
+            }
+            current[count] = id;
+            ids = current;
+            ordinal = count++;
+            // Publish after the array write so readers holding the ordinal see the id
+            ORDINALS.put(id, ordinal);
+            return ordinal;
+        }
+    }
+
+    /**
+     * Get the ordinal of a movie id without assigning one, -1 if the id has never been seen
+     */
+    public static int find(String id) {
+        Integer ordinal = ORDINALS.get(id);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Get the movie id of an ordinal returned by ordinal(String)
+     */
+    public static String id(int ordinal) {
+        return ids[ordinal];
+    }
+}
@@ -1,21 +1,55 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Movie system main class, manages the entire application
  */
 public class MovieSystem {
-    private Map<String, Movie> movies;
-    private Map<String, User> users;
+    private AtomicReference<Catalogue> catalogue;
+    private CatalogueWatcher catalogueWatcher;
+    private UserStore users;
     private User currentUser;
     private RecommendationEngine recommendationEngine;
+    private UserPersister userPersister;
+    private SessionManager sessionManager;
+    private AlsRetrainer alsRetrainer;
+    private String sessionToken;
     private Scanner scanner;
 
     public MovieSystem() {
-        this.movies = FileManager.loadMovies();
-        this.users = FileManager.loadUsers();
-        this.recommendationEngine = new RecommendationEngine(movies);
+        this.catalogue = new AtomicReference<>(Catalogue.build(1, FileManager.loadMovies()));
+        try {
+            this.users = FileManager.openUserStore(Integer.getInteger("users.cacheSize", UserStore.DEFAULT_CACHE_SIZE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open user data", e);
+        }
+        this.recommendationEngine = new RecommendationEngine(catalogue);
+        this.userPersister = new UserPersister(users,
+                Long.getLong("users.flushIntervalMs", UserPersister.DEFAULT_FLUSH_INTERVAL_MILLIS),
+                Integer.getInteger("users.flushThreshold", UserPersister.DEFAULT_DIRTY_THRESHOLD),
+                Integer.getInteger("users.queueCapacity", UserPersister.DEFAULT_QUEUE_CAPACITY));
+        this.userPersister.registerShutdownHook();
+        this.sessionManager = new SessionManager(users, userPersister,
+                Long.getLong("sessions.idleTimeoutMs", SessionManager.DEFAULT_IDLE_TIMEOUT_MILLIS),
+                Long.getLong("sessions.tickMs", SessionManager.DEFAULT_TICK_MILLIS));
+        this.catalogueWatcher = FileManager.watchMovies(catalogue,
+                Long.getLong("movies.pollIntervalMs", CatalogueWatcher.DEFAULT_POLL_INTERVAL_MILLIS));
+        this.catalogueWatcher.start();
+        this.recommendationEngine.setAlsModel(FileManager.loadAlsModel());
+        this.alsRetrainer = new AlsRetrainer(recommendationEngine, userPersister,
+                Integer.getInteger("als.retrainThreshold", AlsRetrainer.DEFAULT_CHANGE_THRESHOLD),
+                Long.getLong("als.checkIntervalMs", AlsRetrainer.DEFAULT_CHECK_INTERVAL_MILLIS));
+        this.alsRetrainer.start();
+        if (recommendationEngine.hasAlsModel() && FileManager.isAlsModelStale()) {
+            // Users changed since the saved model was trained
+            alsRetrainer.requestTraining();
+        }
         this.scanner = new Scanner(System.in);
         this.currentUser = null;
+        Metrics.registerMBean();
     }
 
     /**
@@ -40,6 +74,7 @@ public class MovieSystem {
         System.out.println("\n=== Main Menu ===");
         System.out.println("1. Login");
         System.out.println("2. Exit");
+        System.out.println("3. Show system metrics");
         System.out.print("Please choose an option: ");
 
         try {
@@ -50,6 +85,8 @@ public class MovieSystem {
             } else if (choice == 2) {
                 System.out.println("Thank you for using Movie Recommendation & Tracker System!");
                 System.exit(0);
+            } else if (choice == 3) {
+                showMetrics();
             } else {
                 System.out.println("Invalid option. Please try again.");
             }
@@ -78,6 +115,13 @@ public class MovieSystem {
         try {
             int choice = Integer.parseInt(scanner.nextLine().trim());
 
+            if (sessionManager.touch(sessionToken) == null) {
+                System.out.println("Your session has expired, please log in again.");
+                currentUser = null;
+                sessionToken = null;
+                return;
+            }
+
             if (choice == 1) {
                 browseMovies();
             } else if (choice == 2) {
@@ -119,12 +163,21 @@ public class MovieSystem {
         User user = users.get(username);
         if (user != null && user.getPassword().equals(password)) {
             currentUser = user;
+            sessionToken = sessionManager.open(user);
             System.out.println("Login successful! Welcome, " + username + "!");
         } else {
             System.out.println("Invalid username or password. Please try again.");
         }
     }
 
+    /**
+     * Print a text dump of all recorded metrics
+     */
+    private void showMetrics() {
+        System.out.println("\n=== System Metrics ===");
+        System.out.print(Metrics.getInstance().dump());
+    }
+
     /**
      * Change password
      */
@@ -144,6 +197,7 @@ public class MovieSystem {
                     System.out.println("Password modification failed, two passwords are inconsistent!");
                 }
                 currentUser.setPassword(newPassword1);
+                userPersister.markDirty(currentUser);
                 System.out.println("Change password successfully!");
                 break;
 
@@ -169,10 +223,11 @@ public class MovieSystem {
      * User logout
      */
     private void logout() {
-        // Save user data
-        FileManager.saveUsers(users);
+        // Ending the session flushes pending user changes
+        sessionManager.close(sessionToken);
         System.out.println("Goodbye, " + currentUser.getUsername() + "!");
         currentUser = null;
+        sessionToken = null;
     }
 
     /**
@@ -180,11 +235,12 @@ public class MovieSystem {
      */
     private void browseMovies() {
         System.out.println("\n=== All Movies ===");
+        Catalogue movies = catalogue.get();
 
         int movieCount = 0;
         for (int i = 1; i <= 100; i++) {
             String movieId = "M" + String.format("%03d", i);
-            Movie movie = movies.get(movieId);
+            Movie movie = movies.getMovie(movieId);
             if (movie != null) {
                 System.out.println(movie);
                 movieCount++;
@@ -201,17 +257,16 @@ public class MovieSystem {
         System.out.print("Enter movie ID to add to watchlist: ");
         String movieId = scanner.nextLine().trim().toUpperCase();
 
-        if (!movies.containsKey(movieId)) {
+        if (!catalogue.get().containsMovie(movieId)) {
             System.out.println("Movie ID not found.");
             return;
         }
 
         if (currentUser.getWatchlist().addMovie(movieId)) {
             System.out.println("Movie added to watchlist successfully.");
-            // Update user data
-            users.put(currentUser.getUsername(), currentUser);
-            // Save to file
-            FileManager.saveUsers(users);
+            // Queue for background save
+            userPersister.markDirty(currentUser);
+            alsRetrainer.recordChange();
         } else {
             System.out.println("Movie is already in your watchlist.");
         }
@@ -226,10 +281,9 @@ public class MovieSystem {
 
         if (currentUser.getWatchlist().removeMovie(movieId)) {
             System.out.println("Movie removed from watchlist successfully.");
-            // Update user data
-            users.put(currentUser.getUsername(), currentUser);
-            // Save to file
-            FileManager.saveUsers(users);
+            // Queue for background save
+            userPersister.markDirty(currentUser);
+            alsRetrainer.recordChange();
         } else {
             System.out.println("Movie not found in your watchlist.");
         }
@@ -241,6 +295,7 @@ public class MovieSystem {
     private void viewWatchlist() {
         System.out.println("\n=== Your Watchlist ===");
         Watchlist watchlist = currentUser.getWatchlist();
+        Catalogue movies = catalogue.get();
 
         if (watchlist.isEmpty()) {
             System.out.println("Your watchlist is empty.");
@@ -248,7 +303,7 @@ public class MovieSystem {
         }
 
         for (String movieId : watchlist.getMovieIds()) {
-            Movie movie = movies.get(movieId);
+            Movie movie = movies.getMovie(movieId);
             if (movie != null) {
                 System.out.println(movie);
             }
@@ -262,19 +317,18 @@ public class MovieSystem {
         System.out.print("Enter movie ID to mark as watched: ");
         String movieId = scanner.nextLine().trim().toUpperCase();
 
-        if (!movies.containsKey(movieId)) {
+        if (!catalogue.get().containsMovie(movieId)) {
             System.out.println("Movie ID not found.");
             return;
         }
 
-        if (currentUser.getHistory().addMovie(movieId)) {
+        if (currentUser.getHistory().addMovie(movieId, LocalDate.now())) {
             // If movie is in watchlist, remove it
             currentUser.getWatchlist().removeMovie(movieId);
             System.out.println("Movie marked as watched successfully.");
-            // Update user data
-            users.put(currentUser.getUsername(), currentUser);
-            // Save to file
-            FileManager.saveUsers(users);
+            // Queue for background save
+            userPersister.markDirty(currentUser);
+            alsRetrainer.recordChange();
         } else {
             System.out.println("Movie is already in your history.");
         }
@@ -286,6 +340,7 @@ public class MovieSystem {
     private void viewHistory() {
         System.out.println("\n=== Your Viewing History ===");
         History history = currentUser.getHistory();
+        Catalogue movies = catalogue.get();
 
         if (history.isEmpty()) {
             System.out.println("You haven't watched any movies yet.");
@@ -293,7 +348,7 @@ public class MovieSystem {
         }
 
         for (String movieId : history.getMovieIds()) {
-            Movie movie = movies.get(movieId);
+            Movie movie = movies.getMovie(movieId);
             if (movie != null) {
                 System.out.println(movie);
             }
@@ -309,7 +364,8 @@ public class MovieSystem {
         System.out.println("1. Genre-based (Your favorite genres)");
         System.out.println("2. Rating-based (Highest rated movies)");
         System.out.println("3. Year-based (Most recent movies)");
-        System.out.print("Please choose a strategy (1-3, default 1): ");
+        System.out.println("4. Latent-factor (Users with similar taste, ALS)");
+        System.out.print("Please choose a strategy (1-4, default 1): ");
 
         String strategyChoice = scanner.nextLine().trim();
         String strategyKey = "genre"; // Default to genre strategy
@@ -325,12 +381,23 @@ public class MovieSystem {
                 case "3":
                     strategyKey = "year";
                     break;
+                case "4":
+                    strategyKey = "als";
+                    break;
                 default:
                     System.out.println("Invalid choice. Using genre-based strategy.");
                     strategyKey = "genre";
             }
         }
 
+        if (strategyKey.equals("als") && !recommendationEngine.hasAlsModel()) {
+            // Train in the background, the als strategy falls back to genre-based until it is ready
+            if (!alsRetrainer.isTraining()) {
+                alsRetrainer.requestTraining();
+            }
+            System.out.println("The ALS model is being trained in the background; showing genre-based recommendations until it is ready.");
+        }
+
         // Set recommendation strategy
         recommendationEngine.setCurrentStrategy(strategyKey);
 
@@ -347,15 +414,83 @@ public class MovieSystem {
             System.out.println("Invalid number. Using default value 5.");
         }
 
-        List<Movie> recommendations = recommendationEngine.getRecommendations(currentUser, topN);
+        System.out.print("Diversify results across genres? (y/N): ");
+        String diversify = scanner.nextLine().trim();
+        if (diversify.equalsIgnoreCase("y")) {
+            recommendationEngine.setDiversityReranker(new DiversityReranker(DiversityReranker.DEFAULT_LAMBDA, 0));
+        } else {
+            recommendationEngine.setDiversityReranker(null);
+        }
 
-        System.out.println("\n=== " + recommendationEngine.getCurrentStrategyName() + " ===");
+        RecommendationQuery query = new RecommendationQuery(topN);
+        System.out.print("Filter by genre, year or rating? (y/N): ");
+        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+            readFilters(query);
+        }
+
+        RecommendationCursor cursor = recommendationEngine.openCursor(currentUser, query);
+        List<Movie> recommendations = cursor.nextPage(topN);
+
+        System.out.println("\n=== " + recommendationEngine.getCurrentStrategyName()
+                + (recommendationEngine.isDiversityEnabled() ? " (diversified)" : "")
+                + (query.isFiltered() ? " [" + query + "]" : "") + " ===");
         if (recommendations.isEmpty()) {
             System.out.println("No recommendations available.");
-        } else {
-            for (int i = 0; i < recommendations.size(); i++) {
-                System.out.println((i + 1) + ". " + recommendations.get(i));
+            return;
+        }
+
+        // Each further page continues the same cursor instead of recomputing the earlier ones
+        int shown = 0;
+        while (!recommendations.isEmpty()) {
+            for (Movie movie : recommendations) {
+                System.out.println((++shown) + ". " + movie);
+            }
+            if (!cursor.hasNext()) {
+                break;
             }
+            System.out.print("Show more? (y/N): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                break;
+            }
+            recommendations = cursor.nextPage(topN);
+        }
+    }
+
+    /**
+     * Read optional recommendation filters, an empty answer leaves a filter unset
+     */
+    private void readFilters(RecommendationQuery query) {
+        System.out.print("Genres, comma separated (blank for all): ");
+        String genres = scanner.nextLine().trim();
+        if (!genres.isEmpty()) {
+            Set<String> selected = new HashSet<>();
+            for (String genre : genres.split(",")) {
+                if (!genre.trim().isEmpty()) {
+                    selected.add(genre.trim());
+                }
+            }
+            query.setGenres(selected);
+        }
+
+        try {
+            System.out.print("Earliest year (blank for any): ");
+            String minYear = scanner.nextLine().trim();
+            System.out.print("Latest year (blank for any): ");
+            String maxYear = scanner.nextLine().trim();
+            query.setYearRange(minYear.isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(minYear),
+                    maxYear.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(maxYear));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid year. Ignoring year filter.");
+        }
+
+        try {
+            System.out.print("Minimum rating (blank for any): ");
+            String minRating = scanner.nextLine().trim();
+            if (!minRating.isEmpty()) {
+                query.setMinRating(Double.parseDouble(minRating));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid rating. Ignoring rating filter.");
         }
     }
 
@@ -0,0 +1,157 @@
+import java.util.*;
+
+/**
+ * Lazy, resumable result of one recommendation request. Movies are pulled from the
+ * strategy's ordered source only when the caller asks for them, so fetching the next
+ * page costs work proportional to that page instead of everything before it.
+ * With diversity re-ranking each page is re-ranked from a pool of page size times
+ * RecommendationEngine.CANDIDATE_POOL_FACTOR; the unused part of the pool is kept
+ * for the next page. Not thread-safe, RecommendationPublisher serialises access.
+ */
+public class RecommendationCursor implements Iterator<Movie> {
+    private static final LatencyHistogram CANDIDATE_COUNTS = Metrics.histogram("recommend.candidates");
+    private static final LatencyHistogram RERANK_LATENCY = Metrics.histogram("recommend.rerank.ns");
+
+    private Iterator<Movie> source;
+    private Set<String> excluded;
+    private final DiversityReranker reranker;
+    private final int pageSize;
+    private final RecommendationQuery query;
+    private final String strategy;
+    private final int historySize;
+    private final LatencyHistogram pageLatency;
+    private final Deque<Movie> ready;
+    private final List<Movie> pool;
+    private long openedAt;
+    private RecommendationEvent openEvent;
+    private int scanned;
+
+    /**
+     * Start timing the request; the engine builds the source afterwards and passes it to open()
+     */
+    RecommendationCursor(DiversityReranker reranker, RecommendationQuery query, String strategy, int historySize,
+                         LatencyHistogram pageLatency) {
+        this.reranker = reranker;
+        this.pageSize = Math.max(1, query.getTopN());
+        this.query = query;
+        this.strategy = strategy;
+        this.historySize = historySize;
+        this.pageLatency = pageLatency;
+        this.ready = new ArrayDeque<>();
+        this.pool = new ArrayList<>();
+        this.openedAt = System.nanoTime();
+        this.openEvent = new RecommendationEvent();
+        openEvent.begin();
+    }
+
+    /**
+     * @param excluded movie ids never to return; every movie pulled from the source is
+     *                 added, so a source may consult it to skip what was already pulled
+     */
+    void open(Iterator<Movie> source, Set<String> excluded) {
+        this.source = source;
+        this.excluded = excluded;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready.isEmpty()) {
+            fill();
+        }
+        return !ready.isEmpty();
+    }
+
+    @Override
+    public Movie next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return ready.poll();
+    }
+
+    /**
+     * Return up to size further movies, fewer only when the recommendations run out
+     */
+    public List<Movie> nextPage(int size) {
+        // The first page also pays for opening the cursor
+        long start = openedAt != 0 ? openedAt : System.nanoTime();
+        RecommendationEvent event = openEvent != null ? openEvent : new RecommendationEvent();
+        if (openEvent == null) {
+            event.begin();
+        }
+        openedAt = 0;
+        openEvent = null;
+        int scannedBefore = scanned;
+
+        RecommendationPhaseEvent scanEvent = new RecommendationPhaseEvent();
+        scanEvent.begin();
+        List<Movie> page = new ArrayList<>(size);
+        while (page.size() < size && hasNext()) {
+            page.add(ready.poll());
+        }
+        int candidates = scanned - scannedBefore;
+        scanEvent.finish(RecommendationPhaseEvent.CANDIDATE_SCAN, strategy, historySize, candidates);
+
+        CANDIDATE_COUNTS.record(candidates);
+        pageLatency.record(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.strategy = strategy;
+            event.historySize = historySize;
+            event.candidateCount = candidates;
+            event.resultCount = page.size();
+            event.diversified = reranker != null;
+            event.filters = query.toString();
+            event.commit();
+        }
+        return page;
+    }
+
+    /**
+     * Number of movies pulled from the source so far, including skipped ones
+     */
+    public int getScanned() {
+        return scanned;
+    }
+
+    private void fill() {
+        if (reranker == null) {
+            Movie movie = pull();
+            if (movie != null) {
+                ready.add(movie);
+            }
+            return;
+        }
+
+        int poolSize = pageSize * RecommendationEngine.CANDIDATE_POOL_FACTOR;
+        while (pool.size() < poolSize) {
+            Movie movie = pull();
+            if (movie == null) break;
+            pool.add(movie);
+        }
+
+        long start = System.nanoTime();
+        RecommendationPhaseEvent event = new RecommendationPhaseEvent();
+        event.begin();
+        int pooled = pool.size();
+        List<Movie> chosen = reranker.rerank(pool, pageSize);
+        Set<Movie> chosenSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        chosenSet.addAll(chosen);
+        pool.removeIf(chosenSet::contains);
+        RERANK_LATENCY.record(System.nanoTime() - start);
+        event.finish(RecommendationPhaseEvent.RERANK, strategy, historySize, pooled);
+        ready.addAll(chosen);
+    }
+
+    // Next movie from the source that is not excluded, null when the source is exhausted
+    private Movie pull() {
+        while (source.hasNext()) {
+            Movie movie = source.next();
+            scanned++;
+            if (excluded.add(movie.getId())) {
+                return movie;
+            }
+        }
+        return null;
+    }
+}
@@ -1,38 +1,135 @@
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Recommendation engine class, recommends movies based on user preferences with multiple strategies
  */
 public class RecommendationEngine {
-    private Map<String, Movie> movies;
+    // Candidate pool handed to the re-ranker, as a multiple of topN
+    public static final int CANDIDATE_POOL_FACTOR = 10;
+
+    private AtomicReference<Catalogue> catalogue;
     private String currentStrategy;
+    private DiversityReranker diversityReranker;
+    private volatile AlsModel alsModel;
+    private Map<String, LatencyHistogram> strategyLatency;
 
     public RecommendationEngine(Map<String, Movie> movies) {
-        this.movies = movies;
+        this(new AtomicReference<>(Catalogue.build(1, movies)));
+    }
+
+    /**
+     * Create an engine reading from a catalogue reference that may be swapped at any time
+     */
+    public RecommendationEngine(AtomicReference<Catalogue> catalogue) {
+        this.catalogue = catalogue;
         this.currentStrategy = "genre"; // Default to genre strategy
+        this.strategyLatency = new HashMap<>();
+        for (String strategy : getAvailableStrategies()) {
+            strategyLatency.put(strategy, Metrics.histogram("recommend." + strategy + ".ns"));
+        }
     }
 
     /**
      * Get recommended movie list
      */
     public List<Movie> getRecommendations(User user, int topN) {
-        switch (currentStrategy) {
+        return getRecommendations(user, new RecommendationQuery(topN));
+    }
+
+    /**
+     * Get recommended movie list restricted to the movies matching the query filters
+     */
+    public List<Movie> getRecommendations(User user, RecommendationQuery query) {
+        return openCursor(user, query).nextPage(query.getTopN());
+    }
+
+    /**
+     * Open a lazy cursor over the recommendations; pages of query.getTopN() movies are
+     * produced on demand, so scrolling further only pays for the extra movies
+     */
+    public RecommendationCursor openCursor(User user, RecommendationQuery query) {
+        return openCursor(currentStrategy, diversityReranker, user, query);
+    }
+
+    /**
+     * Publish the recommendations as a stream with back-pressure, delivered on the executor.
+     * The strategy and re-ranker are fixed when this is called.
+     */
+    public Flow.Publisher<Movie> publish(User user, RecommendationQuery query, Executor executor) {
+        String strategy = currentStrategy;
+        DiversityReranker reranker = diversityReranker;
+        return new RecommendationPublisher(() -> openCursor(strategy, reranker, user, query), executor);
+    }
+
+    /**
+     * Set diversity re-ranker applied after candidate scoring, null to disable
+     */
+    public void setDiversityReranker(DiversityReranker diversityReranker) {
+        this.diversityReranker = diversityReranker;
+    }
+
+    /**
+     * Check whether diversity re-ranking is enabled
+     */
+    public boolean isDiversityEnabled() {
+        return diversityReranker != null;
+    }
+
+    /**
+     * Set the trained ALS model used by the "als" strategy
+     */
+    public void setAlsModel(AlsModel alsModel) {
+        this.alsModel = alsModel;
+    }
+
+    /**
+     * Check whether an ALS model is available
+     */
+    public boolean hasAlsModel() {
+        return alsModel != null;
+    }
+
+    private RecommendationCursor openCursor(String strategy, DiversityReranker reranker, User user,
+                                            RecommendationQuery query) {
+        int historySize = user.getHistory().size();
+        RecommendationCursor cursor = new RecommendationCursor(reranker, query, strategy, historySize,
+                strategyLatency.get(strategy));
+        // Read the snapshot once, a reload while the cursor is open does not affect it
+        Candidates candidates = new Candidates(catalogue.get(), query, strategy, historySize);
+        // Exclude movies user has already watched or plans to watch
+        Set<String> excluded = getUserMovieIds(user);
+        int batchSize = query.getTopN() * (reranker != null ? CANDIDATE_POOL_FACTOR : 1);
+        cursor.open(getStrategySource(strategy, candidates, user, excluded, batchSize), excluded);
+        return cursor;
+    }
+
+    /**
+     * Get the current strategy's candidates in strategy order, produced lazily
+     */
+    private Iterator<Movie> getStrategySource(String strategy, Candidates candidates, User user,
+                                              Set<String> excluded, int batchSize) {
+        switch (strategy) {
             case "genre":
-                return getGenreBasedRecommendations(user, topN);
+                return getGenreBasedSource(candidates, user);
             case "rating":
-                return getRatingBasedRecommendations(user, topN);
+                return candidates.byRating().iterator();
             case "year":
-                return getYearBasedRecommendations(user, topN);
+                return candidates.byYear().iterator();
+            case "als":
+                return getAlsSource(candidates, user, excluded, batchSize);
         }
         // This should never happen due to setCurrentStrategy validation
-        return getGenreBasedRecommendations(user, topN);
+        return getGenreBasedSource(candidates, user);
     }
 
     /**
      * Set current recommendation strategy
      */
     public void setCurrentStrategy(String strategy) {
-        if (strategy.equals("genre") || strategy.equals("rating") || strategy.equals("year")) {
+        if (strategy.equals("genre") || strategy.equals("rating") || strategy.equals("year") || strategy.equals("als")) {
             this.currentStrategy = strategy;
         }
         // Silently ignore invalid strategies
@@ -46,6 +143,7 @@ public class RecommendationEngine {
             case "genre": return "Genre-Based Recommendation";
             case "rating": return "Rating-Based Recommendation";
             case "year": return "Year-Based Recommendation";
+            case "als": return "Latent-Factor Recommendation (ALS)";
         }
         return "Genre-Based Recommendation"; // Fallback
     }
@@ -58,6 +156,7 @@ public class RecommendationEngine {
             case "genre": return "Recommends movies based on your favorite genres from watch history and watchlist";
             case "rating": return "Recommends highest rated movies you haven't watched yet";
             case "year": return "Recommends the most recent movies you haven't watched yet";
+            case "als": return "Recommends movies liked by users with similar history and watchlist (matrix factorisation)";
         }
         return "Unknown strategy"; // Fallback
     }
@@ -70,6 +169,7 @@ public class RecommendationEngine {
         strategies.add("genre");
         strategies.add("rating");
         strategies.add("year");
+        strategies.add("als");
         return strategies;
     }
 
@@ -81,234 +181,273 @@ public class RecommendationEngine {
             case "genre": return "Genre-Based Recommendation";
             case "rating": return "Rating-Based Recommendation";
             case "year": return "Year-Based Recommendation";
+            case "als": return "Latent-Factor Recommendation (ALS)";
         }
         return "Unknown"; // Fallback
     }
 
     /**
-     * Genre-based recommendation strategy
+     * Genre-based recommendation strategy, top rated movies when there is no history
      */
-    private List<Movie> getGenreBasedRecommendations(User user, int topN) {
+    private Iterator<Movie> getGenreBasedSource(Candidates candidates, User user) {
         if (user.getHistory().isEmpty() && user.getWatchlist().isEmpty()) {
-            return getTopRatedMovies(topN);
+            return candidates.byRating().iterator();
         }
 
-        Map<String, Integer> genreCounts = getUserFavoriteGenres(user);
+        RecommendationPhaseEvent event = new RecommendationPhaseEvent();
+        event.begin();
+        Map<String, Integer> genreCounts = getUserFavoriteGenres(candidates.catalogue, user);
+        event.finish(RecommendationPhaseEvent.FAVORITE_GENRES, candidates.strategy, candidates.historySize,
+                genreCounts.size());
 
         if (genreCounts.isEmpty()) {
-            return getTopRatedMovies(topN);
+            return candidates.byRating().iterator();
         }
 
-        // Get movie IDs that user has already watched or plans to watch
-        Set<String> userMovieIds = new HashSet<>();
-        userMovieIds.addAll(user.getHistory().getMovieIds());
-        userMovieIds.addAll(user.getWatchlist().getMovieIds());
+        return new GenreMergeIterator(candidates.byGenre(), genreCounts);
+    }
 
-        // Create candidate movie list
-        List<Movie> candidateMovies = new ArrayList<>();
-        for (Movie movie : movies.values()) {
-            if (!userMovieIds.contains(movie.getId())) {
-                candidateMovies.add(movie);
-            }
+    /**
+     * Latent-factor strategy, falls back to genre-based until a model is trained
+     */
+    private Iterator<Movie> getAlsSource(Candidates candidates, User user, Set<String> excluded, int batchSize) {
+        AlsModel model = alsModel;
+        if (model == null) {
+            return getGenreBasedSource(candidates, user);
         }
 
-        // Sort using bubble sort based on user preferences
-        sortMoviesByPreference(candidateMovies, genreCounts);
-
-        // Return topN recommendations
-        List<Movie> recommendations = new ArrayList<>();
-        int count = Math.min(topN, candidateMovies.size());
-        for (int i = 0; i < count; i++) {
-            recommendations.add(candidateMovies.get(i));
+        float[] userVector = model.userVector(user);
+        if (userVector == null) {
+            return candidates.byRating().iterator();
         }
-
-        return recommendations;
+        return new AlsIterator(model, userVector, candidates, excluded, batchSize);
     }
 
     /**
-     * Rating-based recommendation strategy
+     * Get movie IDs that user has already watched or plans to watch
      */
-    private List<Movie> getRatingBasedRecommendations(User user, int topN) {
-        List<Movie> allMovies = new ArrayList<>(movies.values());
-
-        // Exclude movies user has already watched or plans to watch
+    private Set<String> getUserMovieIds(User user) {
         Set<String> userMovieIds = new HashSet<>();
         userMovieIds.addAll(user.getHistory().getMovieIds());
         userMovieIds.addAll(user.getWatchlist().getMovieIds());
-
-        List<Movie> candidateMovies = new ArrayList<>();
-        for (Movie movie : allMovies) {
-            if (!userMovieIds.contains(movie.getId())) {
-                candidateMovies.add(movie);
-            }
-        }
-
-        // Sort by rating using bubble sort
-        sortMoviesByRating(candidateMovies);
-
-        // Return topN recommendations
-        List<Movie> recommendations = new ArrayList<>();
-        int count = Math.min(topN, candidateMovies.size());
-        for (int i = 0; i < count; i++) {
-            recommendations.add(candidateMovies.get(i));
-        }
-
-        return recommendations;
+        return userMovieIds;
     }
 
     /**
-     * Year-based recommendation strategy
+     * Get user's favorite movie genres
      */
-    private List<Movie> getYearBasedRecommendations(User user, int topN) {
-        List<Movie> allMovies = new ArrayList<>(movies.values());
-
-        // Exclude movies user has already watched or plans to watch
-        Set<String> userMovieIds = new HashSet<>();
-        userMovieIds.addAll(user.getHistory().getMovieIds());
-        userMovieIds.addAll(user.getWatchlist().getMovieIds());
+    private Map<String, Integer> getUserFavoriteGenres(Catalogue catalogue, User user) {
+        Map<String, Integer> genreCounts = new HashMap<>();
 
-        List<Movie> candidateMovies = new ArrayList<>();
-        for (Movie movie : allMovies) {
-            if (!userMovieIds.contains(movie.getId())) {
-                candidateMovies.add(movie);
+        // Count genres from watch history
+        user.getHistory().forEach((movieOrdinal, epochDay) -> {
+            Movie movie = catalogue.getMovie(MovieIds.id(movieOrdinal));
+            if (movie != null) {
+                genreCounts.merge(movie.getGenre(), 1, Integer::sum);
             }
-        }
-
-        // Sort by year using bubble sort (newest first)
-        sortMoviesByYear(candidateMovies);
+        });
 
-        // Return topN recommendations
-        List<Movie> recommendations = new ArrayList<>();
-        int count = Math.min(topN, candidateMovies.size());
-        for (int i = 0; i < count; i++) {
-            recommendations.add(candidateMovies.get(i));
+        // Count genres from watchlist
+        for (String movieId : user.getWatchlist().getMovieIds()) {
+            Movie movie = catalogue.getMovie(movieId);
+            if (movie != null) {
+                genreCounts.merge(movie.getGenre(), 1, Integer::sum);
+            }
         }
 
-        return recommendations;
+        return genreCounts;
     }
 
     /**
-     * Sort movies by user preference using bubble sort
+     * Candidate movies for one request: the whole catalogue indexes when the query has no
+     * filters, otherwise only the matches found through the catalogue indexes
      */
-    private void sortMoviesByPreference(List<Movie> movies, Map<String, Integer> genreCounts) {
-        int n = movies.size();
-        for (int i = 0; i < n - 1; i++) {
-            for (int j = 0; j < n - i - 1; j++) {
-                Movie m1 = movies.get(j);
-                Movie m2 = movies.get(j + 1);
-
-                int genreScore1 = genreCounts.containsKey(m1.getGenre()) ? genreCounts.get(m1.getGenre()) : 0;
-                int genreScore2 = genreCounts.containsKey(m2.getGenre()) ? genreCounts.get(m2.getGenre()) : 0;
-
-                // Sort by genre match first
-                if (genreScore1 < genreScore2) {
-                    // Swap positions
-                    Movie temp = movies.get(j);
-                    movies.set(j, movies.get(j + 1));
-                    movies.set(j + 1, temp);
-                }
-                // If genre match is equal, sort by rating
-                else if (genreScore1 == genreScore2 && m1.getRating() < m2.getRating()) {
-                    // Swap positions
-                    Movie temp = movies.get(j);
-                    movies.set(j, movies.get(j + 1));
-                    movies.set(j + 1, temp);
+    private static class Candidates {
+        private final Catalogue catalogue;
+        private final RecommendationQuery query;
+        // Request details for the profiling events
+        private final String strategy;
+        private final int historySize;
+        private List<Movie> byRating;
+        private List<Movie> byYear;
+        private Map<String, List<Movie>> byGenre;
+
+        Candidates(Catalogue catalogue, RecommendationQuery query, String strategy, int historySize) {
+            this.catalogue = catalogue;
+            this.query = query.isFiltered() ? query : null;
+            this.strategy = strategy;
+            this.historySize = historySize;
+        }
+
+        List<Movie> byRating() {
+            if (byRating == null) {
+                if (query == null) {
+                    byRating = catalogue.getByRating();
+                } else {
+                    RecommendationPhaseEvent event = new RecommendationPhaseEvent();
+                    event.begin();
+                    byRating = catalogue.find(query);
+                    event.finish(RecommendationPhaseEvent.CANDIDATE_FILTER, strategy, historySize, byRating.size());
                 }
             }
+            return byRating;
         }
-    }
 
-    /**
-     * Sort movies by rating using bubble sort
-     */
-    private void sortMoviesByRating(List<Movie> movies) {
-        int n = movies.size();
-        for (int i = 0; i < n - 1; i++) {
-            for (int j = 0; j < n - i - 1; j++) {
-                Movie m1 = movies.get(j);
-                Movie m2 = movies.get(j + 1);
-
-                if (m1.getRating() < m2.getRating()) {
-                    // Swap positions
-                    Movie temp = movies.get(j);
-                    movies.set(j, movies.get(j + 1));
-                    movies.set(j + 1, temp);
+        List<Movie> byYear() {
+            if (byYear == null) {
+                if (query == null) {
+                    byYear = catalogue.getByYear();
+                } else {
+                    // Stable sort of the rating order keeps ties in rating order like the catalogue index
+                    List<Movie> matches = byRating();
+                    RecommendationPhaseEvent event = new RecommendationPhaseEvent();
+                    event.begin();
+                    byYear = new ArrayList<>(matches);
+                    byYear.sort(Comparator.comparingInt(Movie::getYear).reversed());
+                    event.finish(RecommendationPhaseEvent.SORT, strategy, historySize, byYear.size());
                 }
             }
+            return byYear;
         }
-    }
 
-    /**
-     * Sort movies by year using bubble sort
-     */
-    private void sortMoviesByYear(List<Movie> movies) {
-        int n = movies.size();
-        for (int i = 0; i < n - 1; i++) {
-            for (int j = 0; j < n - i - 1; j++) {
-                Movie m1 = movies.get(j);
-                Movie m2 = movies.get(j + 1);
-
-                if (m1.getYear() < m2.getYear()) {
-                    // Swap positions
-                    Movie temp = movies.get(j);
-                    movies.set(j, movies.get(j + 1));
-                    movies.set(j + 1, temp);
+        /**
+         * Candidates of each genre, highest rated first
+         */
+        Map<String, List<Movie>> byGenre() {
+            if (byGenre == null) {
+                byGenre = new HashMap<>();
+                if (query == null) {
+                    for (String genre : catalogue.getGenres()) {
+                        byGenre.put(genre, catalogue.getByGenre(genre));
+                    }
+                } else {
+                    for (Movie movie : byRating()) {
+                        byGenre.computeIfAbsent(movie.getGenre(), k -> new ArrayList<>()).add(movie);
+                    }
                 }
             }
+            return byGenre;
+        }
+
+        boolean allows(Movie movie) {
+            return movie != null && (query == null || query.matches(movie));
         }
     }
 
     /**
-     * Get user's favorite movie genres
+     * Merges the per-genre rating lists so genres with a higher count in the user's history
+     * and watchlist come first, and genres with the same count are interleaved by rating.
+     * This is the order of the rating index stably sorted by genre count, produced one
+     * movie at a time.
      */
-    private Map<String, Integer> getUserFavoriteGenres(User user) {
-        Map<String, Integer> genreCounts = new HashMap<>();
+    private static class GenreMergeIterator implements Iterator<Movie> {
+        private final List<List<Movie>> lists;
+        private final int[] counts;
+        private final int[] positions;
+        private int levelStart;
+        private int levelEnd;
+
+        GenreMergeIterator(Map<String, List<Movie>> byGenre, Map<String, Integer> genreCounts) {
+            List<String> genres = new ArrayList<>(byGenre.keySet());
+            genres.sort((g1, g2) -> Integer.compare(genreCounts.getOrDefault(g2, 0), genreCounts.getOrDefault(g1, 0)));
+            this.lists = new ArrayList<>(genres.size());
+            this.counts = new int[genres.size()];
+            for (int i = 0; i < genres.size(); i++) {
+                lists.add(byGenre.get(genres.get(i)));
+                counts[i] = genreCounts.getOrDefault(genres.get(i), 0);
+            }
+            this.positions = new int[genres.size()];
+            this.levelEnd = nextLevelEnd(0);
+        }
 
-        // Count genres from watch history
-        for (String movieId : user.getHistory().getMovieIds()) {
-            Movie movie = movies.get(movieId);
-            if (movie != null) {
-                String genre = movie.getGenre();
-                if (genreCounts.containsKey(genre)) {
-                    genreCounts.put(genre, genreCounts.get(genre) + 1);
-                } else {
-                    genreCounts.put(genre, 1);
+        @Override
+        public boolean hasNext() {
+            while (levelStart < lists.size()) {
+                for (int i = levelStart; i < levelEnd; i++) {
+                    if (positions[i] < lists.get(i).size()) return true;
                 }
+                levelStart = levelEnd;
+                levelEnd = nextLevelEnd(levelStart);
             }
+            return false;
         }
 
-        // Count genres from watchlist
-        for (String movieId : user.getWatchlist().getMovieIds()) {
-            Movie movie = movies.get(movieId);
-            if (movie != null) {
-                String genre = movie.getGenre();
-                if (genreCounts.containsKey(genre)) {
-                    genreCounts.put(genre, genreCounts.get(genre) + 1);
-                } else {
-                    genreCounts.put(genre, 1);
+        @Override
+        public Movie next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int best = -1;
+            for (int i = levelStart; i < levelEnd; i++) {
+                if (positions[i] < lists.get(i).size() && (best < 0
+                        || Catalogue.BY_RATING.compare(lists.get(i).get(positions[i]), lists.get(best).get(positions[best])) < 0)) {
+                    best = i;
                 }
             }
+            return lists.get(best).get(positions[best]++);
         }
 
-        return genreCounts;
+        // Genres sharing the count of the genre at start form one level
+        private int nextLevelEnd(int start) {
+            int end = start;
+            while (end < counts.length && counts[end] == counts[start]) {
+                end++;
+            }
+            return end;
+        }
     }
 
     /**
-     * Get top rated movies
+     * Pulls ALS results in batches. Each batch is the next best movies not yet pulled by
+     * the cursor, and the batch size doubles so a long scroll costs amortised O(1) model
+     * queries per page.
      */
-    private List<Movie> getTopRatedMovies(int topN) {
-        List<Movie> allMovies = new ArrayList<>(movies.values());
-
-        // Sort by rating using bubble sort
-        sortMoviesByRating(allMovies);
+    private static class AlsIterator implements Iterator<Movie> {
+        private final AlsModel model;
+        private final float[] userVector;
+        private final Candidates candidates;
+        private final Set<String> excluded;
+        private int batchSize;
+        private List<String> batch;
+        private int position;
+        private boolean exhausted;
+
+        AlsIterator(AlsModel model, float[] userVector, Candidates candidates, Set<String> excluded, int batchSize) {
+            this.model = model;
+            this.userVector = userVector;
+            this.candidates = candidates;
+            this.excluded = excluded;
+            this.batchSize = Math.max(1, batchSize);
+            this.batch = Collections.emptyList();
+        }
 
-        // Return topN movies
-        List<Movie> topMovies = new ArrayList<>();
-        int count = Math.min(topN, allMovies.size());
-        for (int i = 0; i < count; i++) {
-            topMovies.add(allMovies.get(i));
+        @Override
+        public boolean hasNext() {
+            if (position < batch.size()) {
+                return true;
+            }
+            if (exhausted) {
+                return false;
+            }
+            // Skip movies already pulled, movies no longer in the catalogue and movies outside the query filters
+            Catalogue catalogue = candidates.catalogue;
+            RecommendationPhaseEvent event = new RecommendationPhaseEvent();
+            event.begin();
+            batch = model.recommend(userVector, batchSize,
+                    id -> !excluded.contains(id) && candidates.allows(catalogue.getMovie(id)));
+            event.finish(RecommendationPhaseEvent.ALS_SCORE, candidates.strategy, candidates.historySize, batchSize);
+            position = 0;
+            exhausted = batch.size() < batchSize;
+            batchSize *= 2;
+            return !batch.isEmpty();
         }
 
-        return topMovies;
+        @Override
+        public Movie next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return candidates.catalogue.getMovie(batch.get(position++));
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,32 @@
+import jdk.jfr.*;
+
+/**
+ * JFR event for one page of recommendations. The first page of a cursor also covers
+ * opening it, so it matches the time a getRecommendations call takes.
+ */
+@Name("moviesystem.Recommendation")
+@Label("Recommendation")
+@Category({"Movie System", "Recommendation"})
+@Description("One page of recommendations served from a cursor")
+@StackTrace(false)
+public class RecommendationEvent extends Event {
+    @Label("Strategy")
+    String strategy;
+
+    @Label("History Size")
+    @Description("Entries in the user's watch history")
+    int historySize;
+
+    @Label("Candidate Count")
+    @Description("Movies pulled from the strategy source for this page, including skipped ones")
+    int candidateCount;
+
+    @Label("Result Count")
+    int resultCount;
+
+    @Label("Diversified")
+    boolean diversified;
+
+    @Label("Filters")
+    String filters;
+}
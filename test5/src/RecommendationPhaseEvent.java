@@ -0,0 +1,47 @@
+import jdk.jfr.*;
+
+/**
+ * JFR event for one phase inside a recommendation request: favorite genres, candidate
+ * filtering through the catalogue indexes, sorting, scanning, ALS scoring or re-ranking
+ */
+@Name("moviesystem.RecommendationPhase")
+@Label("Recommendation Phase")
+@Category({"Movie System", "Recommendation"})
+@Description("One phase of a recommendation request")
+@StackTrace(false)
+public class RecommendationPhaseEvent extends Event {
+    public static final String FAVORITE_GENRES = "favoriteGenres";
+    public static final String CANDIDATE_FILTER = "candidateFilter";
+    public static final String SORT = "sort";
+    public static final String CANDIDATE_SCAN = "candidateScan";
+    public static final String ALS_SCORE = "alsScore";
+    public static final String RERANK = "rerank";
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Strategy")
+    String strategy;
+
+    @Label("History Size")
+    @Description("Entries in the user's watch history")
+    int historySize;
+
+    @Label("Candidate Count")
+    @Description("Movies this phase worked on")
+    int candidateCount;
+
+    /**
+     * End the event and commit it with its fields if recording is enabled
+     */
+    void finish(String phase, String strategy, int historySize, int candidateCount) {
+        end();
+        if (shouldCommit()) {
+            this.phase = phase;
+            this.strategy = strategy;
+            this.historySize = historySize;
+            this.candidateCount = candidateCount;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Flow.Publisher over a recommendation cursor. Every subscriber gets its own cursor,
+ * opened on the executor when the first items are requested, and movies are only
+ * pulled from it while the subscriber has outstanding demand.
+ */
+public class RecommendationPublisher implements Flow.Publisher<Movie> {
+    private static final LongAdder SUBSCRIBER_ERRORS = Metrics.counter("recommend.stream.subscriberErrors");
+
+    private final Supplier<RecommendationCursor> cursors;
+    private final Executor executor;
+
+    public RecommendationPublisher(Supplier<RecommendationCursor> cursors, Executor executor) {
+        this.cursors = cursors;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Movie> subscriber) {
+        Objects.requireNonNull(subscriber);
+        subscriber.onSubscribe(new CursorSubscription(subscriber));
+    }
+
+    /**
+     * Delivers at most the requested number of movies. Requests and cancellation may come
+     * from any thread; delivery runs on the executor, one drain at a time.
+     */
+    private class CursorSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Movie> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean done;
+        private volatile Throwable invalidRequest;
+        private RecommendationCursor cursor;
+
+        CursorSubscription(Flow.Subscriber<? super Movie> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " movies, must be positive");
+            } else {
+                // Saturate at Long.MAX_VALUE, which means unbounded demand
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (done) return;
+                if (invalidRequest != null) {
+                    done = true;
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+
+                long requested = demand.get();
+                long emitted = 0;
+                boolean exhausted = false;
+                try {
+                    if (cursor == null) {
+                        cursor = cursors.get();
+                    }
+                    // Completion needs no demand, so a subscriber that asked for exactly
+                    // the movies left still gets onComplete
+                    while (!done) {
+                        if (!cursor.hasNext()) {
+                            exhausted = true;
+                            break;
+                        }
+                        if (emitted == requested || !deliver(cursor.next())) {
+                            break;
+                        }
+                        emitted++;
+                    }
+                } catch (RuntimeException e) {
+                    done = true;
+                    subscriber.onError(e);
+                    return;
+                }
+                if (exhausted && !done) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                if (requested != Long.MAX_VALUE) {
+                    demand.addAndGet(-emitted);
+                }
+
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Hand one movie to the subscriber. If onNext throws, the subscription is treated
+         * as cancelled and the subscriber is not called again (Reactive Streams rule 2.13).
+         */
+        private boolean deliver(Movie movie) {
+            try {
+                subscriber.onNext(movie);
+                return true;
+            } catch (RuntimeException e) {
+                done = true;
+                SUBSCRIBER_ERRORS.increment();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.*;
+
+/**
+ * Recommendation request with optional filters on genre, release year and rating.
+ * Filters are applied by the catalogue indexes while candidates are generated.
+ */
+public class RecommendationQuery {
+    private int topN;
+    private Set<String> genres;
+    private int minYear;
+    private int maxYear;
+    private double minRating;
+
+    public RecommendationQuery(int topN) {
+        this.topN = topN;
+        this.genres = Collections.emptySet();
+        this.minYear = Integer.MIN_VALUE;
+        this.maxYear = Integer.MAX_VALUE;
+        this.minRating = Double.NEGATIVE_INFINITY;
+    }
+
+    public int getTopN() {
+        return topN;
+    }
+
+    public void setTopN(int topN) {
+        this.topN = topN;
+    }
+
+    /**
+     * Genres to include in lower case, empty for every genre
+     */
+    public Set<String> getGenres() {
+        return genres;
+    }
+
+    /**
+     * Genres are matched ignoring case, like the genre names users type in
+     */
+    public void setGenres(Set<String> genres) {
+        this.genres = new HashSet<>();
+        if (genres != null) {
+            for (String genre : genres) {
+                this.genres.add(genre.toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    public int getMinYear() {
+        return minYear;
+    }
+
+    public int getMaxYear() {
+        return maxYear;
+    }
+
+    /**
+     * Set the inclusive release year range
+     */
+    public void setYearRange(int minYear, int maxYear) {
+        this.minYear = minYear;
+        this.maxYear = maxYear;
+    }
+
+    public double getMinRating() {
+        return minRating;
+    }
+
+    public void setMinRating(double minRating) {
+        this.minRating = minRating;
+    }
+
+    /**
+     * Check whether any filter is set
+     */
+    public boolean isFiltered() {
+        return !genres.isEmpty() || minYear != Integer.MIN_VALUE || maxYear != Integer.MAX_VALUE
+                || minRating != Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Check a single movie against every filter
+     */
+    public boolean matches(Movie movie) {
+        return (genres.isEmpty() || genres.contains(movie.getGenre().toLowerCase(Locale.ROOT)))
+                && movie.getYear() >= minYear && movie.getYear() <= maxYear
+                && movie.getRating() >= minRating;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (!genres.isEmpty()) sb.append(String.join("/", new TreeSet<>(genres))).append(' ');
+        if (minYear != Integer.MIN_VALUE || maxYear != Integer.MAX_VALUE) {
+            sb.append(minYear == Integer.MIN_VALUE ? "" : minYear).append('-')
+                    .append(maxYear == Integer.MAX_VALUE ? "" : maxYear).append(' ');
+        }
+        if (minRating != Double.NEGATIVE_INFINITY) sb.append(">=").append(minRating);
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,239 @@
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logged-in sessions keyed by an unguessable token, expired after a period of
+ * inactivity. Sessions sit in a hashed timer wheel: each slot is a lock-free stack
+ * for one tick, and a background thread pops the slot of every tick that passes.
+ * Touching a session only writes its last access time; when its slot comes round
+ * and the session is still active it is pushed into the slot of its new deadline
+ * instead. Opening, touching and expiring are all constant time and nothing ever
+ * scans every session. When a session ends the user's pending changes are flushed,
+ * once per tick for all users expiring in that tick.
+ */
+public class SessionManager {
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 60 * 1000;
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    private static final int TOKEN_BYTES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final LongAdder OPENED = Metrics.counter("sessions.opened");
+    private static final LongAdder CLOSED = Metrics.counter("sessions.closed");
+    private static final LongAdder EXPIRED = Metrics.counter("sessions.expired");
+    private static final LongAdder RESCHEDULED = Metrics.counter("sessions.rescheduled");
+    private static final LatencyHistogram TICK_LATENCY = Metrics.histogram("sessions.tick.ns");
+
+    private final Map<String, Session> sessions;
+    private final UserStore userStore;
+    private final UserPersister userPersister;
+    private final long idleTimeoutMillis;
+    private final long tickMillis;
+    private final AtomicReferenceArray<Session> wheel;
+    private final int mask;
+    private final long origin;
+    private final SecureRandom random;
+    private final Thread worker;
+    private volatile boolean running;
+    // Last tick whose slot has been processed, only written by the worker
+    private long processedTick;
+
+    public SessionManager(UserStore userStore, UserPersister userPersister) {
+        this(userStore, userPersister, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * @param tickMillis expiry granularity; a session ends between idleTimeoutMillis
+     *                   and idleTimeoutMillis + tickMillis after its last touch
+     */
+    public SessionManager(UserStore userStore, UserPersister userPersister, long idleTimeoutMillis, long tickMillis) {
+        if (tickMillis <= 0 || idleTimeoutMillis < tickMillis) {
+            throw new IllegalArgumentException("Tick must be positive and no longer than the idle timeout");
+        }
+        this.sessions = new ConcurrentHashMap<>();
+        this.userStore = userStore;
+        this.userPersister = userPersister;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.tickMillis = tickMillis;
+
+        // Enough slots that a full timeout fits in one turn of the wheel
+        int slots = Integer.highestOneBit((int) Math.min(1 << 20, idleTimeoutMillis / tickMillis + 2) - 1) << 1;
+        this.wheel = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+        this.origin = System.nanoTime();
+        this.random = new SecureRandom();
+        this.processedTick = 0;
+        this.running = true;
+        this.worker = new Thread(this::run, "session-expiry");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Start a session for an authenticated user and return its token
+     */
+    public String open(User user) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        char[] token = new char[TOKEN_BYTES * 2];
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+            token[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            token[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        Session session = new Session(new String(token), user, now());
+        sessions.put(session.token, session);
+        schedule(session, session.lastAccess + idleTimeoutMillis);
+        OPENED.increment();
+        return session.token;
+    }
+
+    /**
+     * Record activity on a session and return its user, null if the token is unknown
+     * or the session has expired
+     */
+    public User touch(String token) {
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null || session.ended) {
+            return null;
+        }
+        session.lastAccess = now();
+        return session.user;
+    }
+
+    /**
+     * End a session now, flushing the user's changes before returning.
+     * Returns false if the session had already ended.
+     */
+    public boolean close(String token) {
+        Session session = token != null ? sessions.remove(token) : null;
+        if (session == null) {
+            return false;
+        }
+        // The wheel drops the ended session when its slot comes round
+        session.ended = true;
+        CLOSED.increment();
+        if (userStore.isDirty(session.user.getUsername())) {
+            userPersister.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Number of open sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Stop the expiry thread, waiting for a flush in progress; open sessions stay valid
+     * until closed. The worker is woken rather than interrupted, since an interrupt
+     * during a flush closes the users file channel and fails the write.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Milliseconds since the manager was created, monotonic
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    // Push the session onto the slot of the first tick at or after the deadline
+    private void schedule(Session session, long deadline) {
+        int slot = (int) ((deadline + tickMillis - 1) / tickMillis) & mask;
+        Session head;
+        do {
+            head = wheel.get(slot);
+            session.next = head;
+        } while (!wheel.compareAndSet(slot, head, session));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long due = now() / tickMillis;
+                if (processedTick >= due) {
+                    synchronized (this) {
+                        if (running) {
+                            wait(Math.max(1, (processedTick + 1) * tickMillis - now()));
+                        }
+                    }
+                    continue;
+                }
+
+                // Catch up on every tick that passed, e.g. after a slow flush
+                boolean flush = false;
+                while (processedTick < due) {
+                    processedTick++;
+                    flush |= expire((int) processedTick & mask);
+                }
+                if (flush) {
+                    userPersister.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Error expiring sessions: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Pop one slot: end idle sessions, move touched ones to their new deadline.
+     * Returns true if an expired user has changes to flush.
+     */
+    private boolean expire(int slot) {
+        long start = System.nanoTime();
+        long now = now();
+        boolean dirty = false;
+        Session session = wheel.getAndSet(slot, null);
+
+        while (session != null) {
+            Session next = session.next;
+            session.next = null;
+            if (!session.ended) {
+                long deadline = session.lastAccess + idleTimeoutMillis;
+                if (deadline > now) {
+                    RESCHEDULED.increment();
+                    schedule(session, deadline);
+                } else if (sessions.remove(session.token, session)) {
+                    session.ended = true;
+                    EXPIRED.increment();
+                    dirty |= userStore.isDirty(session.user.getUsername());
+                }
+            }
+            session = next;
+        }
+        TICK_LATENCY.record(System.nanoTime() - start);
+        return dirty;
+    }
+
+    private static class Session {
+        private final String token;
+        private final User user;
+        private volatile long lastAccess;
+        private volatile boolean ended;
+        // Next session in the same wheel slot
+        private Session next;
+
+        Session(String token, User user, long lastAccess) {
+            this.token = token;
+            this.user = user;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Crash-safe writer for users.csv. Records are appended to one reused StringBuilder,
+ * encoded in chunks into a direct ByteBuffer and written to a temp file through a
+ * FileChannel. commit() forces the data to disk, atomically renames the temp file
+ * over the target and writes the matching UserIndex from the offsets it tracked.
+ */
+public class UserFileWriter implements Closeable {
+    public static final String HEADER = "Username,Password,Watchlist,History";
+
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final StringBuilder text = new StringBuilder(CHUNK_CHARS + 1024);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    private long[] hashes = new long[1024];
+    private long[] offsets = new long[1024];
+    private int count;
+    private long recordOffset;
+    private long bytesWritten;
+    private boolean committed;
+
+    public UserFileWriter(Path target) throws IOException {
+        this.target = target;
+        this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        appendRecord(null, HEADER);
+    }
+
+    /**
+     * Append a user record
+     */
+    public void writeUser(User user) throws IOException {
+        int start = text.length();
+        text.append(user.getUsername()).append(',').append(user.getPassword()).append(',');
+        appendIds(user.getWatchlist().getMovieIds());
+        text.append(',');
+        user.getHistory().appendTo(text);
+        text.append('\n');
+        endRecord(user.getUsername(), start);
+    }
+
+    /**
+     * Append an unchanged record copied from an existing users file
+     */
+    public void writeLine(String username, String line) throws IOException {
+        appendRecord(username, line);
+    }
+
+    /**
+     * Flush, force to disk, atomically replace the target and write the index.
+     * Returns the number of bytes written.
+     */
+    public long commit(Path indexFile) throws IOException {
+        encodeAndWrite(true);
+        channel.force(true);
+        channel.close();
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(target);
+        committed = true;
+
+        if (indexFile != null) {
+            UserIndex.write(indexFile, target, hashes, offsets, count);
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Discard the temp file unless the writer was committed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void appendRecord(String username, String line) throws IOException {
+        int start = text.length();
+        text.append(line).append('\n');
+        endRecord(username, start);
+    }
+
+    private void endRecord(String username, int start) throws IOException {
+        if (username != null) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            hashes[count] = UserIndex.hash(username.trim());
+            offsets[count] = recordOffset;
+            count++;
+        }
+        recordOffset += utf8Length(text, start, text.length());
+
+        if (text.length() >= CHUNK_CHARS) {
+            encodeAndWrite(false);
+        }
+    }
+
+    private void appendIds(List<String> ids) {
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) text.append(';');
+            text.append(ids.get(i));
+        }
+    }
+
+    private void encodeAndWrite(boolean endOfInput) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                break;
+            }
+        }
+
+        if (endOfInput) {
+            while (encoder.flush(buffer).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+        text.setLength(0);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static long utf8Length(CharSequence chars, int start, int end) {
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Sync the directory entry so the rename itself is durable, ignored where unsupported
+    private static void syncDirectory(Path file) {
+        Path dir = file.toAbsolutePath().getParent();
+        try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Some file systems do not allow opening a directory
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On-disk index from username to the byte offset of its record in users.csv.
+ * The index file is a header followed by fixed 16-byte (hash, offset) entries
+ * sorted by hash; it is memory-mapped and binary searched, so opening it costs
+ * the same for five users or fifty million. The header records the size and
+ * modification time of the users file so a stale index is detected and rebuilt.
+ */
+public class UserIndex implements Closeable {
+    private static final int MAGIC = 0x55494458; // "UIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 16;
+
+    private static final LongAdder REBUILDS = Metrics.counter("users.index.rebuilds");
+
+    private final FileChannel usersChannel;
+    private final MappedByteBuffer entries;
+    private final int count;
+
+    private UserIndex(FileChannel usersChannel, MappedByteBuffer entries, int count) {
+        this.usersChannel = usersChannel;
+        this.entries = entries;
+        this.count = count;
+    }
+
+    /**
+     * Open the index for a users file, rebuilding it first if it is missing or stale
+     */
+    public static UserIndex open(Path usersFile, Path indexFile) throws IOException {
+        if (!isValid(usersFile, indexFile)) {
+            System.out.println("Building user index...");
+            build(usersFile, indexFile);
+        }
+
+        FileChannel usersChannel = FileChannel.open(usersFile, StandardOpenOption.READ);
+        try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            int count = mapped.getInt(16);
+            return new UserIndex(usersChannel, mapped, count);
+        } catch (IOException e) {
+            usersChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of users in the index
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find the raw CSV record of a user, null if the user does not exist
+     */
+    public String lookup(String username) throws IOException {
+        long hash = hash(username);
+
+        // Binary search for the first entry with this hash
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (hashAt(mid) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        // Hash collisions are resolved by checking the username in the record itself
+        for (int i = low; i < count && hashAt(i) == hash; i++) {
+            String line = readLine(entries.getLong(HEADER_SIZE + i * ENTRY_SIZE + 8));
+            if (line != null && username.equals(usernameOf(line))) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        usersChannel.close();
+    }
+
+    /**
+     * Hash used for index entries (64-bit FNV-1a over the UTF-16 chars)
+     */
+    public static long hash(String username) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            h ^= username.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Write an index file for the given entries, sorting them in place
+     */
+    public static void write(Path indexFile, Path usersFile, long[] hashes, long[] offsets, int count) throws IOException {
+        sort(hashes, offsets, 0, count - 1);
+
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(Files.size(usersFile));
+            buffer.putInt(count);
+            buffer.putInt(0);
+            buffer.putLong(Files.getLastModifiedTime(usersFile).toMillis());
+
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < ENTRY_SIZE) {
+                    drain(buffer, channel);
+                }
+                buffer.putLong(hashes[i]);
+                buffer.putLong(offsets[i]);
+            }
+            drain(buffer, channel);
+            channel.force(true);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Scan a users file and write its index, used when the index is missing or stale
+     */
+    public static void build(Path usersFile, Path indexFile) throws IOException {
+        REBUILDS.increment();
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        long[] hashes = new long[1024];
+        long[] offsets = new long[1024];
+        int count = 0;
+
+        try (InputStream in = Files.newInputStream(usersFile)) {
+            byte[] chunk = new byte[256 * 1024];
+            ByteArrayOutputStream field = new ByteArrayOutputStream(64);
+            long position = 0;
+            long lineStart = 0;
+            boolean header = true;
+            boolean inUsername = true;
+            int read;
+
+            while ((read = in.read(chunk)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    byte b = chunk[i];
+                    position++;
+                    if (b == '\n') {
+                        if (!header && field.size() > 0) {
+                            if (count == hashes.length) {
+                                hashes = Arrays.copyOf(hashes, count * 2);
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                            }
+                            hashes[count] = hash(field.toString(StandardCharsets.UTF_8).trim());
+                            offsets[count] = lineStart;
+                            count++;
+                        }
+                        header = false;
+                        inUsername = true;
+                        field.reset();
+                        lineStart = position;
+                    } else if (inUsername) {
+                        if (b == ',') {
+                            inUsername = false;
+                        } else if (b != '\r') {
+                            field.write(b);
+                        }
+                    }
+                }
+            }
+
+            // Last record without a trailing newline
+            if (!header && field.size() > 0 && !inUsername) {
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count + 1);
+                    offsets = Arrays.copyOf(offsets, count + 1);
+                }
+                hashes[count] = hash(field.toString(StandardCharsets.UTF_8).trim());
+                offsets[count] = lineStart;
+                count++;
+            }
+        }
+
+        write(indexFile, usersFile, hashes, offsets, count);
+        event.finish(FileOperationEvent.BUILD_INDEX, indexFile, count, Files.size(indexFile));
+    }
+
+    /**
+     * Check that the index exists and was written for the current users file
+     */
+    private static boolean isValid(Path usersFile, Path indexFile) {
+        if (!Files.exists(indexFile) || !Files.exists(usersFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) return false;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the full header
+            }
+            header.flip();
+            return header.getInt(0) == MAGIC
+                    && header.getInt(4) == VERSION
+                    && header.getLong(8) == Files.size(usersFile)
+                    && header.getLong(24) == Files.getLastModifiedTime(usersFile).toMillis()
+                    && channel.size() == HEADER_SIZE + (long) header.getInt(16) * ENTRY_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private long hashAt(int i) {
+        return entries.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    /**
+     * Read one line of the users file starting at the given offset
+     */
+    private String readLine(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long position = offset;
+
+        while (true) {
+            int read = usersChannel.read(buffer, position);
+            for (int i = buffer.position() - Math.max(read, 0); i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = (i > 0 && buffer.get(i - 1) == '\r') ? i - 1 : i;
+                    return new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+                }
+            }
+            if (read <= 0) {
+                return buffer.position() == 0 ? null : new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+            }
+            position += read;
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    private static String usernameOf(String line) {
+        int comma = line.indexOf(',');
+        return (comma < 0 ? line : line.substring(0, comma)).trim();
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Quicksort of the parallel hash/offset arrays by hash
+     */
+    private static void sort(long[] hashes, long[] offsets, int low, int high) {
+        while (low < high) {
+            long pivot = hashes[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (hashes[i] < pivot) i++;
+                while (hashes[j] > pivot) j--;
+                if (i <= j) {
+                    long h = hashes[i];
+                    hashes[i] = hashes[j];
+                    hashes[j] = h;
+                    long o = offsets[i];
+                    offsets[i] = offsets[j];
+                    offsets[j] = o;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (j - low < high - i) {
+                sort(hashes, offsets, low, j);
+                low = i;
+            } else {
+                sort(hashes, offsets, i, high);
+                high = j;
+            }
+        }
+    }
+}
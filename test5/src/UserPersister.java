@@ -0,0 +1,150 @@
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind persister for user data. Mutations mark a user dirty, a background
+ * thread coalesces the marks and flushes the UserStore when the flush interval has
+ * passed or enough users are dirty, so the request thread never waits for the disk.
+ */
+public class UserPersister {
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 2000;
+    public static final int DEFAULT_DIRTY_THRESHOLD = 64;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final LongAdder FLUSHES = Metrics.counter("persist.flushes");
+    private static final LongAdder DIRTY_MARKS = Metrics.counter("persist.dirtyMarks");
+    private static final LongAdder FLUSH_FAILURES = Metrics.counter("persist.flushFailures");
+    private static final LongAdder BACKPRESSURE_WAITS = Metrics.counter("persist.backpressureWaits");
+    private static final LatencyHistogram BATCH_SIZES = Metrics.histogram("persist.batchSize");
+    // Offered by close() to wake the worker, compared by identity
+    private static final String STOP = new String("");
+
+    private final UserStore userStore;
+    private final BlockingQueue<String> dirtyQueue;
+    private final Set<String> pendingUsers;
+    private final long flushIntervalMillis;
+    private final int dirtyThreshold;
+    private final Thread worker;
+    private volatile boolean running;
+
+    public UserPersister(UserStore userStore) {
+        this(userStore, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_DIRTY_THRESHOLD, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public UserPersister(UserStore userStore, long flushIntervalMillis, int dirtyThreshold, int queueCapacity) {
+        this.userStore = userStore;
+        this.dirtyQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.pendingUsers = new HashSet<>();
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.dirtyThreshold = dirtyThreshold;
+        this.running = true;
+        this.worker = new Thread(this::run, "user-persister");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Mark a user as changed. Blocks while the queue is full so writers cannot
+     * outrun the persister.
+     */
+    public void markDirty(User user) {
+        DIRTY_MARKS.increment();
+        userStore.markDirty(user);
+        String username = user.getUsername();
+        if (dirtyQueue.offer(username)) {
+            return;
+        }
+
+        BACKPRESSURE_WAITS.increment();
+        try {
+            dirtyQueue.put(username);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Could not queue the mark, save synchronously instead of losing it
+            flush();
+        }
+    }
+
+    /**
+     * Save all pending changes now, returns after the file has been written.
+     * A failed batch stays pending and is retried by the next flush.
+     */
+    public synchronized boolean flush() {
+        dirtyQueue.drainTo(pendingUsers);
+        pendingUsers.remove(STOP);
+        // Ask the store rather than the queue: a mark the worker has polled but not yet
+        // added to pendingUsers, or changes kept from a failed flush, are only there
+        int dirty = userStore.dirtyCount();
+        if (dirty == 0) {
+            pendingUsers.clear();
+            return true;
+        }
+
+        BATCH_SIZES.record(dirty);
+        FLUSHES.increment();
+        if (!userStore.flush()) {
+            FLUSH_FAILURES.increment();
+            return false;
+        }
+        pendingUsers.clear();
+        return true;
+    }
+
+    /**
+     * Stop the background thread and flush whatever is still pending. The worker is
+     * woken rather than interrupted, since an interrupt during a flush closes the users
+     * file channel and fails the write.
+     */
+    public void close() {
+        running = false;
+        // A full queue means the worker is not waiting and sees running on its next pass
+        dirtyQueue.offer(STOP);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Register a JVM shutdown hook that closes this persister
+     */
+    public void registerShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "user-persister-shutdown"));
+    }
+
+    private void run() {
+        long nextFlush = System.currentTimeMillis() + flushIntervalMillis;
+
+        while (running) {
+            try {
+                long wait = Math.max(1, nextFlush - System.currentTimeMillis());
+                String username = dirtyQueue.poll(wait, TimeUnit.MILLISECONDS);
+
+                boolean due;
+                synchronized (this) {
+                    if (username != null && username != STOP) {
+                        pendingUsers.add(username);
+                    }
+                    dirtyQueue.drainTo(pendingUsers);
+                    pendingUsers.remove(STOP);
+                    due = pendingUsers.size() >= dirtyThreshold || System.currentTimeMillis() >= nextFlush;
+                }
+
+                if (due) {
+                    flush();
+                    nextFlush = System.currentTimeMillis() + flushIntervalMillis;
+                }
+            } catch (InterruptedException e) {
+                // Nothing interrupts the worker, close() does the final flush
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Error in user persister: " + e.getMessage());
+            }
+        }
+    }
+}
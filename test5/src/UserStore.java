@@ -0,0 +1,190 @@
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On-demand user storage. Users are faulted in from users.csv through the UserIndex
+ * when first requested and kept in a bounded LRU cache, so startup cost no longer
+ * depends on the number of users and heap is bounded by the active ones. Dirty users
+ * evicted from the cache are held until the next flush writes them back.
+ */
+public class UserStore {
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private static final LatencyHistogram FAULT_IN_LATENCY = Metrics.histogram("users.faultIn.ns");
+    private static final LongAdder EVICTIONS = Metrics.counter("users.evictions");
+
+    private final Path usersFile;
+    private final Path indexFile;
+    private final LinkedHashMap<String, User> cache;
+    private final Set<String> dirtyUsers = new HashSet<>();
+    private final Map<String, User> evictedDirtyUsers = new HashMap<>();
+    private final Object flushLock = new Object();
+    private Map<String, User> flushingUsers = Collections.emptyMap();
+    private UserIndex index;
+
+    public UserStore(Path usersFile, Path indexFile, int cacheSize) throws IOException {
+        this.usersFile = usersFile;
+        this.indexFile = indexFile;
+        this.index = UserIndex.open(usersFile, indexFile);
+        this.cache = new LinkedHashMap<String, User>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+                if (size() <= cacheSize) {
+                    return false;
+                }
+                EVICTIONS.increment();
+                if (dirtyUsers.remove(eldest.getKey())) {
+                    evictedDirtyUsers.put(eldest.getKey(), eldest.getValue());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get a user, loading it from disk on a cache miss. Returns null if the user does not exist.
+     */
+    public synchronized User get(String username) {
+        User user = cache.get(username);
+        Metrics.cacheLookup("users.cache", user != null);
+        if (user != null) {
+            return user;
+        }
+
+        // Unsaved changes win over the file contents
+        user = evictedDirtyUsers.remove(username);
+        if (user != null) {
+            cache.put(username, user);
+            dirtyUsers.add(username);
+            return user;
+        }
+        user = flushingUsers.get(username);
+        if (user != null) {
+            cache.put(username, user);
+            return user;
+        }
+
+        long start = System.nanoTime();
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        try {
+            String line = index.lookup(username);
+            if (line != null) {
+                user = FileManager.parseUser(line);
+            }
+        } catch (IOException e) {
+            System.out.println("Error loading user " + username + ": " + e.getMessage());
+        }
+        FAULT_IN_LATENCY.record(System.nanoTime() - start);
+        event.finish(FileOperationEvent.LOAD_USER, usersFile, user != null ? 1 : 0, 0);
+
+        if (user != null) {
+            cache.put(username, user);
+        }
+        return user;
+    }
+
+    /**
+     * Mark a user as changed so the next flush writes it
+     */
+    public synchronized void markDirty(User user) {
+        String username = user.getUsername();
+        if (cache.get(username) != user) {
+            // The caller's copy is the one that was changed, make it the resident one
+            evictedDirtyUsers.remove(username);
+            cache.put(username, user);
+        }
+        dirtyUsers.add(username);
+    }
+
+    /**
+     * Number of users with changes the next flush would write, including changes
+     * kept from a failed flush
+     */
+    public synchronized int dirtyCount() {
+        return dirtyUsers.size() + evictedDirtyUsers.size();
+    }
+
+    /**
+     * Whether the user has changes the next flush would write
+     */
+    public synchronized boolean isDirty(String username) {
+        return dirtyUsers.contains(username) || evictedDirtyUsers.containsKey(username);
+    }
+
+    /**
+     * Number of users currently resident in memory
+     */
+    public synchronized int residentCount() {
+        return cache.size();
+    }
+
+    /**
+     * Number of users in the users file
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Write every changed user back to the users file. The file is rewritten without
+     * holding the store lock, so lookups continue while the flush is running.
+     * Returns false if the write failed; the changes then stay dirty for the next flush.
+     */
+    public boolean flush() {
+        synchronized (flushLock) {
+            Map<String, User> changes = new HashMap<>();
+            synchronized (this) {
+                for (String username : dirtyUsers) {
+                    changes.put(username, cache.get(username));
+                }
+                changes.putAll(evictedDirtyUsers);
+                dirtyUsers.clear();
+                evictedDirtyUsers.clear();
+                flushingUsers = changes;
+            }
+
+            if (changes.isEmpty()) {
+                return true;
+            }
+
+            UserIndex newIndex = null;
+            if (FileManager.mergeUsers(changes, usersFile, indexFile)) {
+                try {
+                    newIndex = UserIndex.open(usersFile, indexFile);
+                } catch (IOException e) {
+                    System.out.println("Error opening user index: " + e.getMessage());
+                }
+            }
+
+            UserIndex oldIndex = null;
+            synchronized (this) {
+                if (newIndex != null) {
+                    oldIndex = index;
+                    index = newIndex;
+                } else {
+                    // Keep the changes pending so the next flush retries them
+                    for (Map.Entry<String, User> entry : changes.entrySet()) {
+                        if (cache.containsKey(entry.getKey())) {
+                            dirtyUsers.add(entry.getKey());
+                        } else {
+                            evictedDirtyUsers.putIfAbsent(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                flushingUsers = Collections.emptyMap();
+            }
+
+            if (oldIndex != null) {
+                try {
+                    oldIndex.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing user index: " + e.getMessage());
+                }
+            }
+            return newIndex != null;
+        }
+    }
+}
@@ -10,7 +10,7 @@ public class Watchlist {
         this.movieIds = new ArrayList<>();
     }
 
-    public boolean addMovie(String movieId) {
+    public synchronized boolean addMovie(String movieId) {
         if (!movieIds.contains(movieId)) {
             movieIds.add(movieId);
             return true;
@@ -18,15 +18,15 @@ public class Watchlist {
         return false;
     }
 
-    public boolean removeMovie(String movieId) {
+    public synchronized boolean removeMovie(String movieId) {
         return movieIds.remove(movieId);
     }
 
-    public List<String> getMovieIds() {
+    public synchronized List<String> getMovieIds() {
         return new ArrayList<>(movieIds);
     }
 
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return movieIds.isEmpty();
     }
 }
\ No newline at end of file